@@ -17,13 +17,59 @@ import java.nio.file.Path;
  * plain record through Gson instead.
  */
 public record BackendConfig(
-	int port, String token, int workerThreads, int sessionLimit, String colormapsDir) {
+	int port, String token, int workerThreads, int sessionLimit, String colormapsDir,
+	int tileCacheMegabytes, Integer prefetchRing, int blobStoreMegabytes, int sessionMemoryMegabytes,
+	int compileThreads, int jobThreads, boolean virtualThreads, int cpuThreads,
+	int requestMemoryMegabytes, int layerStoreMegabytes) {
 	public static final Path CONFIG_FILE =
 		Path.of("config", "tree-engine-backend.json");
 
 	private static final int DEFAULT_PORT = 3000;
 	private static final int DEFAULT_WORKERS = 4;
-	private static final int DEFAULT_SESSION_LIMIT = 8;
+	/**
+	 * A ceiling, not the working bound: sessions share vanilla's registries
+	 * with the server, so the memory budget is what normally decides.
+	 */
+	private static final int DEFAULT_SESSION_LIMIT = 64;
+	/** A few hundred encoded chunk tiles; held off-heap, so not the game's. */
+	private static final int DEFAULT_TILE_CACHE_MB = 128;
+	/** One chunk beyond the margin is what a single pan brings into view. */
+	private static final int DEFAULT_PREFETCH_RING = 1;
+	private static final int MAX_PREFETCH_RING = 4;
+	/** Several large projects' worth of datapack JSON. */
+	private static final int DEFAULT_BLOB_STORE_MB = 64;
+	/**
+	 * A budget of its own, not a share of the blob store's: the two hold the
+	 * same arrays while both have a file, but either can outlive the other.
+	 */
+	private static final int DEFAULT_LAYER_STORE_MB = 64;
+	/**
+	 * Compiled sessions share the heap with a running game server, so they
+	 * get a quarter of it unless told otherwise.
+	 */
+	private static final int DEFAULT_SESSION_MEMORY_MB =
+		(int) Math.max(64, Runtime.getRuntime().maxMemory() / 4 / (1024 * 1024));
+	/**
+	 * Another quarter for what heavy requests hold while they run: a 10x10
+	 * chunk preview alone is several hundred megabytes. The rest is the
+	 * game's, less the fixed caches: up to about 200 MB of held terrain (see
+	 * TerrainCache.MAX_SNAPSHOTS) and the blob and layer stores.
+	 */
+	private static final int DEFAULT_REQUEST_MEMORY_MB =
+		(int) Math.max(64, Runtime.getRuntime().maxMemory() / 4 / (1024 * 1024));
+	/** Half the cores: the game server and the request workers need the rest. */
+	private static final int DEFAULT_COMPILE_THREADS =
+		Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	private static final int MAX_COMPILE_THREADS = 32;
+	/**
+	 * Background jobs are the heavy requests; two at a time keeps one slow
+	 * one from holding up the next without competing with the game for
+	 * every core.
+	 */
+	private static final int DEFAULT_JOB_THREADS = 2;
+	private static final int MAX_JOB_THREADS = 8;
+	/** The same ceiling as the worker pool it stands in for. */
+	private static final int MAX_CPU_THREADS = 16;
 
 	/**
 	 * Loads config, falling back to defaults when the file is absent so the
@@ -34,7 +80,10 @@ public record BackendConfig(
 	public static BackendConfig load(Gson gson) throws IOException {
 		if (!Files.exists(CONFIG_FILE)) {
 			return new BackendConfig(
-				DEFAULT_PORT, "", DEFAULT_WORKERS, DEFAULT_SESSION_LIMIT, "");
+				DEFAULT_PORT, "", DEFAULT_WORKERS, DEFAULT_SESSION_LIMIT, "",
+				DEFAULT_TILE_CACHE_MB, DEFAULT_PREFETCH_RING, DEFAULT_BLOB_STORE_MB,
+				DEFAULT_SESSION_MEMORY_MB, DEFAULT_COMPILE_THREADS, DEFAULT_JOB_THREADS,
+				false, DEFAULT_WORKERS, DEFAULT_REQUEST_MEMORY_MB, DEFAULT_LAYER_STORE_MB);
 		}
 		try {
 			BackendConfig parsed =
@@ -49,12 +98,27 @@ public record BackendConfig(
 	}
 
 	private BackendConfig withDefaults() {
+		int workers = workerThreads > 0 ? Math.min(workerThreads, 16) : DEFAULT_WORKERS;
 		return new BackendConfig(
 			port > 0 ? port : DEFAULT_PORT,
 			token == null ? "" : token,
-			workerThreads > 0 ? Math.min(workerThreads, 16) : DEFAULT_WORKERS,
+			workers,
 			sessionLimit > 0 ? sessionLimit : DEFAULT_SESSION_LIMIT,
-			colormapsDir == null ? "" : colormapsDir);
+			colormapsDir == null ? "" : colormapsDir,
+			tileCacheMegabytes > 0 ? tileCacheMegabytes : DEFAULT_TILE_CACHE_MB,
+			// Boxed so that an explicit 0, which turns prefetching off, can be
+			// told apart from the field being absent.
+			prefetchRing == null
+				? DEFAULT_PREFETCH_RING
+				: Math.clamp(prefetchRing, 0, MAX_PREFETCH_RING),
+			blobStoreMegabytes > 0 ? blobStoreMegabytes : DEFAULT_BLOB_STORE_MB,
+			sessionMemoryMegabytes > 0 ? sessionMemoryMegabytes : DEFAULT_SESSION_MEMORY_MB,
+			compileThreads > 0 ? Math.min(compileThreads, MAX_COMPILE_THREADS) : DEFAULT_COMPILE_THREADS,
+			jobThreads > 0 ? Math.min(jobThreads, MAX_JOB_THREADS) : DEFAULT_JOB_THREADS,
+			virtualThreads,
+			cpuThreads > 0 ? Math.min(cpuThreads, MAX_CPU_THREADS) : workers,
+			requestMemoryMegabytes > 0 ? requestMemoryMegabytes : DEFAULT_REQUEST_MEMORY_MB,
+			layerStoreMegabytes > 0 ? layerStoreMegabytes : DEFAULT_LAYER_STORE_MB);
 	}
 
 	public boolean hasToken() {
@@ -8,13 +8,26 @@ import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
 import net.fabricmc.loader.api.FabricLoader;
 import net.minecraft.server.MinecraftServer;
 import savage.tree_engine.api.ApiServer;
+import savage.tree_engine.api.CpuPool;
 import savage.tree_engine.api.Http;
+import savage.tree_engine.api.Lane;
+import savage.tree_engine.api.MemoryBudget;
+import savage.tree_engine.datapack.BlobStore;
+import savage.tree_engine.datapack.LayerStore;
+import savage.tree_engine.datapack.PackValidator;
 import savage.tree_engine.datapack.SessionCache;
+import savage.tree_engine.datapack.SessionCompiler;
 import savage.tree_engine.datapack.SessionRoutes;
+import savage.tree_engine.datapack.ValidationRoutes;
+import savage.tree_engine.jobs.JobRoutes;
+import savage.tree_engine.jobs.JobStore;
+import savage.tree_engine.jobs.Supersession;
 import savage.tree_engine.preview.chunk.ChunkPreviewRoutes;
-import savage.tree_engine.registry.RegistryRoutes;
+import savage.tree_engine.preview.chunk.ChunkPreviewer;
+import savage.tree_engine.preview.chunk.TileCache;
 import savage.tree_engine.preview.tree.BenchmarkRoutes;
 import savage.tree_engine.preview.tree.TreePreviewRoutes;
+import savage.tree_engine.registry.RegistryRoutes;
 
 import java.io.IOException;
 
@@ -33,6 +46,11 @@ public class TreeEngineBackend implements ModInitializer {
 
 	private ApiServer api;
 	private SessionCache sessions;
+	private SessionCompiler compiler;
+	private JobStore jobs;
+	private CpuPool cpu;
+	private MemoryBudget memory;
+	private ChunkPreviewer chunkPreviewer;
 
 	@Override
 	public void onInitialize() {
@@ -63,7 +81,12 @@ public class TreeEngineBackend implements ModInitializer {
 
 		try {
 			api = ApiServer.start(config);
-			sessions = new SessionCache(config.sessionLimit());
+			compiler = new SessionCompiler(server, config.compileThreads());
+			memory = new MemoryBudget(config.requestMemoryMegabytes() * 1024L * 1024L);
+			sessions = new SessionCache(
+				config.sessionLimit(), config.sessionMemoryMegabytes() * 1024L * 1024L, compiler, memory);
+			jobs = new JobStore(config.jobThreads(), GSON);
+			cpu = new CpuPool(config.cpuThreads());
 			registerRoutes(api, server, config);
 			api.listen();
 		} catch (IOException e) {
@@ -72,21 +95,39 @@ public class TreeEngineBackend implements ModInitializer {
 	}
 
 	private void registerRoutes(ApiServer api, MinecraftServer server, BackendConfig config) {
-		api.route("/v1/health", exchange -> {
+		chunkPreviewer = new ChunkPreviewer(server, config.prefetchRing(), api::inFlight, cpu);
+
+		api.route("/v1/health", Lane.ADMIN, exchange -> {
 			Http.require(exchange, "GET");
 			JsonObject body = new JsonObject();
 			body.addProperty("status", "ok");
 			body.addProperty("minecraftVersion", server.getServerVersion());
 			body.addProperty("backendVersion", modVersion());
 			body.addProperty("sessions", sessions.size());
+			body.addProperty("dormantSessions", sessions.dormantSize());
+			body.addProperty("sessionMegabytes", sessions.heldBytes() / (1024 * 1024));
+			body.addProperty("jobs", jobs.size());
+			body.addProperty("reservedMegabytes", memory.reservedBytes() / (1024 * 1024));
+			// Whether speculative terrain generation is earning its keep.
+			body.add("terrain", GSON.toJsonTree(chunkPreviewer.terrainStats()));
 			Http.sendJson(exchange, 200, GSON.toJson(body));
 		});
 
-		new SessionRoutes(server, sessions, GSON).register(api);
-		new TreePreviewRoutes(server, sessions, GSON).register(api);
-		new ChunkPreviewRoutes(server, sessions, GSON, config.colormapsDir()).register(api);
+		BlobStore blobs = new BlobStore(config.blobStoreMegabytes() * 1024L * 1024L);
+		LayerStore layers = new LayerStore(config.layerStoreMegabytes() * 1024L * 1024L);
+		JobRoutes jobRoutes = new JobRoutes(jobs, GSON);
+		new SessionRoutes(sessions, blobs, layers, GSON).register(api, jobRoutes);
+		new ValidationRoutes(new PackValidator(server, compiler.executor()), GSON).register(api);
+		// Shared, so one key can span both kinds of preview.
+		Supersession supersession = new Supersession();
+		new TreePreviewRoutes(server, sessions, supersession, cpu, GSON).register(api);
+		TileCache tiles = new TileCache(config.tileCacheMegabytes() * 1024L * 1024L);
+		new ChunkPreviewRoutes(
+			server, sessions, chunkPreviewer, tiles, supersession, memory, GSON, config.colormapsDir())
+			.register(api, jobRoutes);
 		new RegistryRoutes(server, sessions, GSON).register(api);
-		new BenchmarkRoutes(server, sessions, GSON).register(api);
+		new BenchmarkRoutes(server, sessions, cpu, GSON).register(api, jobRoutes);
+		jobRoutes.register(api);
 	}
 
 	private static String modVersion() {
@@ -100,11 +141,27 @@ public class TreeEngineBackend implements ModInitializer {
 			api.stop();
 			api = null;
 		}
+		if (chunkPreviewer != null) {
+			chunkPreviewer.shutdown();
+			chunkPreviewer = null;
+		}
+		if (jobs != null) {
+			jobs.shutdown();
+			jobs = null;
+		}
+		if (cpu != null) {
+			cpu.shutdown();
+			cpu = null;
+		}
 		if (sessions != null) {
 			// Compiled registry sets are large; drop them promptly rather
 			// than waiting for the process to exit.
 			sessions.clear();
 			sessions = null;
 		}
+		if (compiler != null) {
+			compiler.shutdown();
+			compiler = null;
+		}
 	}
 }
@@ -11,11 +11,17 @@ package savage.tree_engine.api;
 public class ApiException extends RuntimeException {
 	private final int status;
 	private final String detail;
+	private final int retryAfterSeconds;
 
 	public ApiException(int status, String message, String detail, Throwable cause) {
+		this(status, message, detail, cause, 0);
+	}
+
+	private ApiException(int status, String message, String detail, Throwable cause, int retryAfterSeconds) {
 		super(message, cause);
 		this.status = status;
 		this.detail = detail;
+		this.retryAfterSeconds = retryAfterSeconds;
 	}
 
 	public int status() {
@@ -26,6 +32,11 @@ public class ApiException extends RuntimeException {
 		return detail;
 	}
 
+	/** Sent as {@code Retry-After} when positive. */
+	public int retryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+
 	public static ApiException badRequest(String message) {
 		return new ApiException(400, message, null, null);
 	}
@@ -42,10 +53,33 @@ public class ApiException extends RuntimeException {
 		return new ApiException(405, "Method not allowed", null, null);
 	}
 
+	/**
+	 * The client's own deadline passed; nobody is waiting for the answer.
+	 * A 504 rather than a 408: a 408 says the client was too slow to send its
+	 * request, and browsers may quietly resend a request answered with one on
+	 * a reused connection - which here would run the stale preview again.
+	 */
+	public static ApiException timedOut(String message) {
+		return new ApiException(504, message, null, null);
+	}
+
+	public static ApiException conflict(String message) {
+		return new ApiException(409, message, null, null);
+	}
+
 	public static ApiException payloadTooLarge(String message) {
 		return new ApiException(413, message, null, null);
 	}
 
+	/** Not now, but the same request may well succeed shortly. */
+	public static ApiException tooManyRequests(String message, String detail, int retryAfterSeconds) {
+		return new ApiException(429, message, detail, null, retryAfterSeconds);
+	}
+
+	public static ApiException unavailable(String message) {
+		return new ApiException(503, message, null, null);
+	}
+
 	public static ApiException internal(String message, Throwable cause) {
 		return new ApiException(500, message, cause.getMessage(), cause);
 	}
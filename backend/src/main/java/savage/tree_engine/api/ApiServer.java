@@ -19,6 +19,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 /**
  * The HTTP front door. Owns the listener, the worker pool, authentication and
@@ -36,12 +37,15 @@ public final class ApiServer {
 	private final BackendConfig config;
 	private final HttpServer server;
 	private final ExecutorService workers;
+	private final LaneGate lanes;
 	private final byte[] expectedToken;
+	private final AtomicInteger inFlight = new AtomicInteger();
 
-	private ApiServer(BackendConfig config, HttpServer server, ExecutorService workers) {
+	private ApiServer(BackendConfig config, HttpServer server, ExecutorService workers, LaneGate lanes) {
 		this.config = config;
 		this.server = server;
 		this.workers = workers;
+		this.lanes = lanes;
 		this.expectedToken = ("Bearer " + config.token()).getBytes(StandardCharsets.UTF_8);
 	}
 
@@ -52,25 +56,62 @@ public final class ApiServer {
 		HttpServer http = HttpServer.create(
 			new InetSocketAddress("127.0.0.1", config.port()), 0);
 
-		AtomicInteger counter = new AtomicInteger();
-		ThreadFactory factory = r -> {
-			Thread t = new Thread(r, "tree-engine-api-" + counter.incrementAndGet());
-			t.setDaemon(true);
-			return t;
-		};
-		ExecutorService workers = Executors.newFixedThreadPool(config.workerThreads(), factory);
+		LaneGate lanes = new LaneGate(config.workerThreads());
+		ExecutorService workers;
+		if (config.virtualThreads()) {
+			// A thread per request, so a handler waiting on chunks or on the
+			// server thread holds no slot anything else needs. What it computes
+			// goes to the CPU pool instead; see CpuPool.
+			workers = Executors.newThreadPerTaskExecutor(
+				Thread.ofVirtual().name("tree-engine-api-", 1).factory());
+		} else {
+			AtomicInteger counter = new AtomicInteger();
+			ThreadFactory factory = r -> {
+				Thread t = new Thread(r, "tree-engine-api-" + counter.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			};
+			// How many run at once is the lanes' business; a thread here is
+			// just somewhere to wait for one. Sized so that every request a
+			// lane would queue has one, and no request waits for a thread
+			// only to be admitted behind the ones already holding them all.
+			workers = Executors.newFixedThreadPool(lanes.capacity(), factory);
+		}
 		http.setExecutor(workers);
 
-		return new ApiServer(config, http, workers);
+		return new ApiServer(config, http, workers, lanes);
 	}
 
 	public Gson gson() {
 		return GSON;
 	}
 
-	/** Registers a route. Handlers may throw; failures become JSON errors. */
-	public ApiServer route(String path, Route handler) {
-		server.createContext(path, wrap(handler));
+	/**
+	 * Authenticated requests being handled right now. Background work uses
+	 * this to stay out of the way of anything a user is waiting for.
+	 *
+	 * <p>Event streams are not counted: one stays open for as long as its job
+	 * runs while doing next to nothing, and counting it would keep prefetching
+	 * off the whole time anyone watches a job.
+	 */
+	public int inFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Registers a route, whose requests wait for a slot in {@code lane}.
+	 * Handlers may throw; failures become JSON errors.
+	 */
+	public ApiServer route(String path, Lane lane, Route handler) {
+		return route(path, exchange -> lane, handler);
+	}
+
+	/**
+	 * Registers a route whose requests do not all wait in the same lane;
+	 * {@code lane} picks one for each authenticated request before it waits.
+	 */
+	public ApiServer route(String path, Function<HttpExchange, Lane> lane, Route handler) {
+		server.createContext(path, wrap(lane, handler));
 		return this;
 	}
 
@@ -93,7 +134,7 @@ public final class ApiServer {
 		LOGGER.info("Tree Engine backend stopped");
 	}
 
-	private HttpHandler wrap(Route handler) {
+	private HttpHandler wrap(Function<HttpExchange, Lane> laneOf, Route handler) {
 		return exchange -> {
 			try (exchange) {
 				applyCors(exchange);
@@ -112,18 +153,44 @@ public final class ApiServer {
 					sendError(exchange, 401, "Unauthorized", null);
 					return;
 				}
+				Lane lane = laneOf.apply(exchange);
+				boolean counted = lane != Lane.STREAM;
+				if (counted) {
+					inFlight.incrementAndGet();
+				}
+				boolean admitted = false;
 				try {
+					admitted = lanes.enter(lane);
+					if (!admitted) {
+						exchange.getResponseHeaders().set(
+							"Retry-After", String.valueOf(lanes.retryAfterSeconds(lane)));
+						sendError(exchange, 503,
+							"Too busy: too many " + lane.name().toLowerCase() + " requests waiting", null);
+						return;
+					}
 					handler.handle(exchange);
 				} catch (ApiException e) {
-					if (e.status() >= 500) {
+					// A 504 is a deadline the client set passing, not a fault.
+					if (e.status() >= 500 && e.status() != 504) {
 						LOGGER.error("{} {} -> {}", exchange.getRequestMethod(),
 							exchange.getRequestURI().getPath(), e.status(), e);
 					}
+					if (e.retryAfterSeconds() > 0) {
+						exchange.getResponseHeaders().set(
+							"Retry-After", String.valueOf(e.retryAfterSeconds()));
+					}
 					sendError(exchange, e.status(), e.getMessage(), e.detail());
 				} catch (Exception e) {
 					LOGGER.error("Unhandled error on {} {}", exchange.getRequestMethod(),
 						exchange.getRequestURI().getPath(), e);
 					sendError(exchange, 500, "Internal server error", e.getMessage());
+				} finally {
+					if (admitted) {
+						lanes.exit(lane);
+					}
+					if (counted) {
+						inFlight.decrementAndGet();
+					}
 				}
 			}
 		};
@@ -143,8 +210,9 @@ public final class ApiServer {
 	private static void applyCors(HttpExchange exchange) {
 		var headers = exchange.getResponseHeaders();
 		headers.set("Access-Control-Allow-Origin", "*");
-		headers.set("Access-Control-Allow-Methods", "GET, POST, DELETE, OPTIONS");
-		headers.set("Access-Control-Allow-Headers", "Authorization, Content-Type");
+		headers.set("Access-Control-Allow-Methods", "GET, POST, PATCH, DELETE, OPTIONS");
+		headers.set("Access-Control-Allow-Headers", "Authorization, Content-Type, If-None-Match");
+		headers.set("Access-Control-Expose-Headers", "ETag, Retry-After");
 		headers.set("Access-Control-Max-Age", "86400");
 	}
 
@@ -0,0 +1,83 @@
+package savage.tree_engine.api;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Where the CPU-heavy phases of a request run when its handler is on a
+ * virtual thread.
+ *
+ * With {@code virtualThreads} on, every request gets a thread of its own and
+ * waiting - on chunk futures, on the server thread, on a compile - costs
+ * nothing. Computing still does: virtual threads share a carrier per core,
+ * and a few decorations running on them would leave {@code /v1/health} with
+ * no carrier to run on. So decoration and tree generation are handed to this
+ * fixed pool and the request's own thread just waits for them, which is the
+ * cheap kind of waiting. Compiles already run on {@link
+ * savage.tree_engine.datapack.SessionCompiler}'s pool and need nothing here.
+ *
+ * <p>On a platform thread - a request worker with virtual threads off, or a
+ * job - work runs inline exactly as it always has. That thread is already a
+ * bounded resource of its own, and a hop would only add latency.
+ */
+public final class CpuPool {
+	private final ThreadPoolExecutor executor;
+
+	public CpuPool(int threads) {
+		AtomicInteger counter = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(
+			Math.max(1, threads), Math.max(1, threads), 0, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<>(), r -> {
+				Thread t = new Thread(r, "tree-engine-cpu-" + counter.incrementAndGet());
+				t.setDaemon(true);
+				// Features and codecs can load classes lazily; they have to
+				// come from the mod's loader.
+				t.setContextClassLoader(CpuPool.class.getClassLoader());
+				return t;
+			});
+	}
+
+	/**
+	 * Runs {@code task} here if called from a virtual thread, inline
+	 * otherwise, and returns what it returns. Whatever it throws is rethrown
+	 * as is, so an {@link ApiException} keeps its status.
+	 */
+	public <T> T call(Supplier<T> task) {
+		if (!Thread.currentThread().isVirtual()) {
+			return task.get();
+		}
+		Future<T> future = executor.submit(task::get);
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException cause) {
+				throw cause;
+			}
+			if (e.getCause() instanceof Error cause) {
+				throw cause;
+			}
+			throw ApiException.internal("CPU task failed", e.getCause());
+		} catch (InterruptedException e) {
+			// Only ever the server going away. Not interrupted in turn: the
+			// task may be mid-write on a channel an interrupt would close.
+			future.cancel(false);
+			Thread.currentThread().interrupt();
+			throw ApiException.unavailable("Server is shutting down");
+		}
+	}
+
+	/** The pool itself, for work that is forked rather than waited on. */
+	public Executor executor() {
+		return executor;
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
@@ -4,11 +4,20 @@ import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
 import com.sun.net.httpserver.HttpExchange;
 
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -51,6 +60,28 @@ public final class Http {
 		}
 	}
 
+	/**
+	 * Parses the body with {@code parser} as it arrives, rather than reading
+	 * all of it into a string first. For bodies large enough that holding
+	 * them twice - once as text, once parsed - is the cost that matters.
+	 * The same size cap applies.
+	 */
+	public static <T> T readJson(HttpExchange exchange, StreamParser<T> parser) throws IOException {
+		try (InputStream in = new CappedInputStream(exchange.getRequestBody());
+			 JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+			if (reader.peek() == JsonToken.END_DOCUMENT) {
+				throw ApiException.badRequest("Request body is empty");
+			}
+			return parser.parse(reader);
+		} catch (EOFException e) {
+			throw ApiException.badRequest("Request body is empty");
+		} catch (MalformedJsonException | IllegalStateException e) {
+			// JsonReader reports the wrong token where one was expected as an
+			// IllegalStateException; to the client both are malformed bodies.
+			throw ApiException.badRequest("Request body is not valid JSON", e.getMessage());
+		}
+	}
+
 	public static <T> T readJson(HttpExchange exchange, Gson gson, Class<T> type) throws IOException {
 		try {
 			T parsed = gson.fromJson(readBody(exchange), type);
@@ -73,6 +104,70 @@ public final class Http {
 		}
 	}
 
+	/**
+	 * Sends an already-encoded JSON body straight from a buffer, which may be
+	 * off-heap, without first copying the whole of it into a byte array. The
+	 * caller's buffer is not consumed.
+	 */
+	public static void sendJson(HttpExchange exchange, int status, ByteBuffer json) throws IOException {
+		ByteBuffer body = json.duplicate();
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.getResponseHeaders().set("X-Content-Type-Options", "nosniff");
+		exchange.sendResponseHeaders(status, body.hasRemaining() ? body.remaining() : -1);
+		try (OutputStream out = exchange.getResponseBody();
+			 WritableByteChannel channel = Channels.newChannel(out)) {
+			while (body.hasRemaining()) {
+				channel.write(body);
+			}
+		}
+	}
+
+	/** Reads a value from a body token by token; see {@link #readJson(HttpExchange, StreamParser)}. */
+	@FunctionalInterface
+	public interface StreamParser<T> {
+		T parse(JsonReader in) throws IOException;
+	}
+
+	/** Fails the request once more than {@link #MAX_BODY_BYTES} have been read. */
+	private static final class CappedInputStream extends FilterInputStream {
+		private long remaining = MAX_BODY_BYTES;
+
+		CappedInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int n = super.read(buffer, offset, length);
+			if (n > 0) {
+				count(n);
+			}
+			return n;
+		}
+
+		private void count(int n) {
+			remaining -= n;
+			if (remaining < 0) {
+				throw ApiException.payloadTooLarge(
+					"Request body exceeds " + (MAX_BODY_BYTES / (1024 * 1024)) + " MiB");
+			}
+		}
+	}
+
+	/** Answers a conditional request whose copy is still current. */
+	public static void sendNotModified(HttpExchange exchange) throws IOException {
+		exchange.sendResponseHeaders(304, -1);
+	}
+
 	/** Rejects anything but the expected method, so handlers can assume it. */
 	public static void require(HttpExchange exchange, String method) {
 		if (!method.equals(exchange.getRequestMethod())) {
@@ -0,0 +1,36 @@
+package savage.tree_engine.api;
+
+/**
+ * Which queue a route's requests wait in; see {@link LaneGate}.
+ *
+ * Every route used to share one worker pool, so four chunk previews in a row
+ * made the single-tree preview behind them - the one the editor fires on
+ * every keystroke - wait for seconds. A lane is what a route says about
+ * itself when it registers: how urgent it is, and therefore what it may be
+ * made to wait behind.
+ */
+public enum Lane {
+	/**
+	 * Whatever a user is watching for as they type or pan: single-tree
+	 * previews, chunk tiles, registry reads. Always admitted first.
+	 */
+	INTERACTIVE,
+	/**
+	 * Whole-area and whole-pack work: chunk previews and comparisons,
+	 * compiles, uploads, validation, benchmarks. Never allowed every slot.
+	 */
+	BULK,
+	/**
+	 * The service's own bookkeeping: health and job status. Cheap, and
+	 * admitted on slots of its own, so it answers however busy the other
+	 * lanes are.
+	 */
+	ADMIN,
+	/**
+	 * Job event streams. Each holds its slot for as long as the job runs, so
+	 * they get slots of their own rather than sitting on admin's, where a
+	 * handful of open streams would leave health with nowhere to run. Nothing
+	 * waits for one: a stream over the limit is turned away at once.
+	 */
+	STREAM
+}
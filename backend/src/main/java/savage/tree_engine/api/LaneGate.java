@@ -0,0 +1,128 @@
+package savage.tree_engine.api;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Admits requests to run, lane by lane.
+ *
+ * Interactive and bulk requests share {@code workerThreads} slots. Bulk may
+ * hold at most half of them, so there is always room for an interactive
+ * request to start; and while any interactive request is waiting, no bulk one
+ * starts, so a freed slot always goes to the one a user is watching for.
+ * Admin requests and job event streams have slots of their own and wait
+ * behind nothing.
+ *
+ * <p>Each lane also has a bound on how many requests may wait. One that would
+ * exceed it is turned away at once with a 503 and a {@code Retry-After},
+ * rather than joining a queue it would only time out in - the client is far
+ * better placed to decide whether it still wants the answer.
+ */
+final class LaneGate {
+	/**
+	 * Fewest shared slots, whatever {@code workerThreads} says. With one, half
+	 * of it would round up to all of it, and a tree preview would wait behind
+	 * a chunk preview after all.
+	 */
+	private static final int MIN_SHARED_SLOTS = 2;
+	/** Admin requests at once. */
+	private static final int ADMIN_SLOTS = 8;
+	/** Job event streams open at once; each holds its slot until its job finishes. */
+	private static final int STREAM_SLOTS = 16;
+
+	private final int sharedSlots;
+	private final Map<Lane, Limit> limits = new EnumMap<>(Lane.class);
+	private final int[] running = new int[Lane.values().length];
+	private final int[] waiting = new int[Lane.values().length];
+	private int shared;
+
+	LaneGate(int workerThreads) {
+		this.sharedSlots = Math.max(MIN_SHARED_SLOTS, workerThreads);
+		limits.put(Lane.INTERACTIVE, new Limit(sharedSlots, 16, 1));
+		// Never every slot: at least one is always left for interactive.
+		limits.put(Lane.BULK, new Limit(sharedSlots / 2, 8, 5));
+		limits.put(Lane.ADMIN, new Limit(ADMIN_SLOTS, 16, 1));
+		limits.put(Lane.STREAM, new Limit(STREAM_SLOTS, 0, 5));
+	}
+
+	/**
+	 * Requests that can be running or waiting at once, across every lane;
+	 * any more are being turned away. A platform worker pool this size never
+	 * leaves a request that could be admitted without a thread to wait on.
+	 */
+	int capacity() {
+		int total = 0;
+		for (Limit limit : limits.values()) {
+			total += limit.slots() + limit.queue();
+		}
+		return total;
+	}
+
+	/** Seconds a turned-away request of this lane is told to wait. */
+	int retryAfterSeconds(Lane lane) {
+		return limits.get(lane).retryAfterSeconds();
+	}
+
+	/**
+	 * Waits for a slot in {@code lane}.
+	 *
+	 * @return false, without waiting, if the lane's queue is already full
+	 */
+	synchronized boolean enter(Lane lane) throws InterruptedException {
+		if (!admissible(lane)) {
+			if (waiting[lane.ordinal()] >= limits.get(lane).queue()) {
+				return false;
+			}
+			waiting[lane.ordinal()]++;
+			try {
+				while (!admissible(lane)) {
+					wait();
+				}
+			} finally {
+				waiting[lane.ordinal()]--;
+				// The last interactive waiter leaving may be what bulk was
+				// waiting for.
+				notifyAll();
+			}
+		}
+		running[lane.ordinal()]++;
+		if (shared(lane)) {
+			shared++;
+		}
+		return true;
+	}
+
+	synchronized void exit(Lane lane) {
+		running[lane.ordinal()]--;
+		if (shared(lane)) {
+			shared--;
+		}
+		notifyAll();
+	}
+
+	private boolean admissible(Lane lane) {
+		if (running[lane.ordinal()] >= limits.get(lane).slots()) {
+			return false;
+		}
+		if (!shared(lane)) {
+			return true;
+		}
+		if (shared >= sharedSlots) {
+			return false;
+		}
+		return lane != Lane.BULK || waiting[Lane.INTERACTIVE.ordinal()] == 0;
+	}
+
+	/** Whether {@code lane} runs on the {@code workerThreads} slots. */
+	private static boolean shared(Lane lane) {
+		return lane == Lane.INTERACTIVE || lane == Lane.BULK;
+	}
+
+	/**
+	 * @param slots             requests of the lane running at once
+	 * @param queue             requests of the lane waiting at once
+	 * @param retryAfterSeconds what a turned-away request is told
+	 */
+	private record Limit(int slots, int queue, int retryAfterSeconds) {
+	}
+}
@@ -0,0 +1,129 @@
+package savage.tree_engine.api;
+
+/**
+ * Heap set aside for the transient working set of heavy requests.
+ *
+ * A 10x10 chunk preview holds several hundred megabytes while it runs -
+ * snapshots, the decorated overlay, the block list and the JSON built from
+ * it - all inside the game's own JVM, and two at once used to be enough to
+ * take the whole server down with it. Lanes bound how many heavy requests
+ * run, but not how big each is. So a heavy request now estimates its peak
+ * from its parameters before it starts and reserves that much here first.
+ *
+ * <p>A request that does not fit waits, briefly, for others to finish. If
+ * too many are already waiting, or the wait runs out, it is refused with a
+ * 429 and a {@code Retry-After}. One estimated at more than the whole budget
+ * is not refused outright: it waits until it can have all of it, and then
+ * runs alone. A caller that can be cancelled - superseded, past its
+ * deadline, a cancelled job - passes its check, and stops waiting as soon as
+ * it fails rather than holding a place in line for an answer nobody wants.
+ *
+ * <p>Estimates are deliberately coarse - see the callers for theirs. They
+ * only have to be in the right range for the total to keep clear of the heap.
+ */
+public final class MemoryBudget {
+	/** Requests waiting for room before new ones are refused. */
+	private static final int MAX_WAITING = 8;
+	private static final long MAX_WAIT_MILLIS = 10_000;
+	private static final int RETRY_AFTER_SECONDS = 5;
+	/** Longest a waiter goes without running its cancellation check. */
+	private static final long CHECK_MILLIS = 100;
+
+	private final long capacity;
+	private long reserved;
+	private int waiting;
+
+	public MemoryBudget(long capacity) {
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * Reserves {@code bytes}, waiting for room if need be.
+	 *
+	 * @param what names the request in the refusal, e.g. "chunk preview"
+	 */
+	public Reservation reserve(String what, long bytes) {
+		return reserve(what, bytes, () -> {
+		});
+	}
+
+	/**
+	 * Reserves {@code bytes}, running {@code checkCancelled} before and
+	 * periodically while waiting; whatever it throws ends the wait, with
+	 * nothing reserved.
+	 */
+	public Reservation reserve(String what, long bytes, Runnable checkCancelled) {
+		checkCancelled.run();
+		long wanted = Math.clamp(bytes, 0, capacity);
+		synchronized (this) {
+			if (capacity - reserved < wanted) {
+				if (waiting >= MAX_WAITING) {
+					throw refused(what, wanted);
+				}
+				waiting++;
+				long deadline = System.nanoTime() + MAX_WAIT_MILLIS * 1_000_000L;
+				try {
+					while (capacity - reserved < wanted) {
+						long remaining = (deadline - System.nanoTime()) / 1_000_000L;
+						if (remaining <= 0) {
+							throw refused(what, wanted);
+						}
+						wait(Math.min(remaining, CHECK_MILLIS));
+						checkCancelled.run();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw ApiException.unavailable("Server is shutting down");
+				} finally {
+					waiting--;
+				}
+			}
+			reserved += wanted;
+		}
+		return new Reservation(wanted);
+	}
+
+	/** What running requests have reserved, for the health endpoint. */
+	public synchronized long reservedBytes() {
+		return reserved;
+	}
+
+	public long capacity() {
+		return capacity;
+	}
+
+	private synchronized void release(long bytes) {
+		reserved -= bytes;
+		notifyAll();
+	}
+
+	private ApiException refused(String what, long wanted) {
+		return ApiException.tooManyRequests(
+			"Not enough memory free for this " + what + " right now",
+			"Needs about " + megabytes(wanted) + " MB; " + megabytes(reserved) + " of "
+				+ megabytes(capacity) + " MB are in use",
+			RETRY_AFTER_SECONDS);
+	}
+
+	private static long megabytes(long bytes) {
+		return bytes / (1024 * 1024);
+	}
+
+	/** Held for the length of the request; closing it gives the room back. */
+	public final class Reservation implements AutoCloseable {
+		private final long bytes;
+		private boolean closed;
+
+		private Reservation(long bytes) {
+			this.bytes = bytes;
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				release(bytes);
+			}
+		}
+	}
+}
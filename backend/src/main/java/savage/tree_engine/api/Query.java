@@ -0,0 +1,31 @@
+package savage.tree_engine.api;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Minimal query-string parsing; the API has only a couple of parameters. */
+public record Query(Map<String, String> values) {
+
+	public static Query of(String raw) {
+		Map<String, String> out = new HashMap<>();
+		if (raw != null) {
+			for (String pair : raw.split("&")) {
+				int eq = pair.indexOf('=');
+				if (eq > 0) {
+					out.put(
+						URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+						URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+				}
+			}
+		}
+		return new Query(out);
+	}
+
+	/** The value, or null if it is absent or blank. */
+	public String get(String key) {
+		String value = values.get(key);
+		return value == null || value.isBlank() ? null : value;
+	}
+}
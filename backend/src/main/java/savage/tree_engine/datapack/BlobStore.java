@@ -0,0 +1,88 @@
+package savage.tree_engine.datapack;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Datapack file contents by hash, shared by every session and bounded by
+ * bytes.
+ *
+ * This is what lets a client upload a manifest instead of a datapack. A
+ * project's files barely change between uploads - after an eviction, after a
+ * backend restart, after switching between two branches of the same project -
+ * so most of any manifest names content the backend already has, and only
+ * the rest needs sending. Content-addressing also dedupes for free: a file
+ * that appears in several sessions is held once.
+ *
+ * <p>Entries are the same byte arrays the sessions' {@link PackContents}
+ * hold, so a blob that is in use costs nothing extra here, and evicting one
+ * never breaks a session - it only means a later manifest naming it has to
+ * send it again.
+ */
+public final class BlobStore {
+	private final long maxBytes;
+	private final LinkedHashMap<String, byte[]> blobs = new LinkedHashMap<>(256, 0.75f, true);
+	private long heldBytes;
+
+	public BlobStore(long maxBytes) {
+		this.maxBytes = Math.max(0, maxBytes);
+	}
+
+	/** The content with this hash, or null if it is not held. */
+	public synchronized byte[] get(String hash) {
+		return blobs.get(hash);
+	}
+
+	/**
+	 * Stores content under its hash. The caller vouches that {@code hash} is
+	 * the content's SHA-256; see {@link PackContents.File}.
+	 */
+	public synchronized void put(String hash, byte[] bytes) {
+		if (bytes.length > maxBytes || blobs.get(hash) != null) {
+			return;
+		}
+		blobs.put(hash, bytes);
+		heldBytes += bytes.length;
+
+		var eldest = blobs.values().iterator();
+		while (heldBytes > maxBytes && eldest.hasNext()) {
+			heldBytes -= eldest.next().length;
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Stores every file of {@code contents} that is on the heap already. A
+	 * file mapped from an archive is not copied in: that would put the very
+	 * bytes mapping exists to keep off the heap back onto it.
+	 */
+	public void putAll(PackContents contents) {
+		for (PackContents.File file : contents.files()) {
+			if (file.onHeap()) {
+				put(file.hash(), file.bytes());
+			}
+		}
+	}
+
+	/** Of {@code hashes}, the ones not held, each once, in the order given. */
+	public synchronized List<String> missing(Collection<String> hashes) {
+		List<String> out = new ArrayList<>();
+		for (String hash : new LinkedHashSet<>(hashes)) {
+			if (!blobs.containsKey(hash)) {
+				out.add(hash);
+			}
+		}
+		return out;
+	}
+
+	public synchronized int size() {
+		return blobs.size();
+	}
+
+	public synchronized long heldBytes() {
+		return heldBytes;
+	}
+}
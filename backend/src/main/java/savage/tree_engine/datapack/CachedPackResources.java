@@ -0,0 +1,117 @@
+package savage.tree_engine.datapack;
+
+import net.minecraft.resources.Identifier;
+import net.minecraft.server.packs.PackLocationInfo;
+import net.minecraft.server.packs.PackResources;
+import net.minecraft.server.packs.PackType;
+import net.minecraft.server.packs.metadata.MetadataSectionType;
+import net.minecraft.server.packs.resources.IoSupplier;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One of the server's own packs, with every server-data file it has been
+ * asked for kept in memory.
+ *
+ * Every compile layers the user's pack over all of the server's, so the
+ * registry loader reads the same vanilla worldgen files - out of the game jar,
+ * one zip entry at a time - on every keystroke-triggered compile. Those files
+ * cannot change while the server runs, so after the first compile that
+ * reaches a registry, its files are served from here. A compile's I/O then
+ * scales with the user's pack; vanilla's is paid once.
+ *
+ * <p>Bytes rather than parsed JSON: the loader only accepts a stream, and
+ * parsing is the cheaper half of reading a file out of a jar anyway. Only
+ * what has actually been listed or read is held, which with
+ * {@link RegistrySet#compileOverVanilla} is only the registries user packs
+ * reach.
+ *
+ * <p>Never closes the pack it wraps. The resource manager a compile builds
+ * closes its packs when done, and these belong to the server.
+ */
+final class CachedPackResources implements PackResources {
+	private final PackResources delegate;
+	private final Map<Identifier, Optional<byte[]>> files = new ConcurrentHashMap<>();
+	private final Map<String, List<Map.Entry<Identifier, byte[]>>> listings = new ConcurrentHashMap<>();
+	private final Map<PackType, Set<String>> namespaces = new ConcurrentHashMap<>();
+
+	CachedPackResources(PackResources delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public IoSupplier<InputStream> getRootResource(String... path) {
+		return delegate.getRootResource(path);
+	}
+
+	@Override
+	public IoSupplier<InputStream> getResource(PackType type, Identifier id) {
+		if (type != PackType.SERVER_DATA) {
+			return delegate.getResource(type, id);
+		}
+		byte[] data = files.computeIfAbsent(id, key -> Optional.ofNullable(read(delegate.getResource(type, key))))
+			.orElse(null);
+		return data != null ? () -> new ByteArrayInputStream(data) : null;
+	}
+
+	@Override
+	public void listResources(PackType type, String namespace, String prefix, ResourceOutput output) {
+		if (type != PackType.SERVER_DATA) {
+			delegate.listResources(type, namespace, prefix, output);
+			return;
+		}
+		List<Map.Entry<Identifier, byte[]>> listing = listings.computeIfAbsent(namespace + ':' + prefix, key -> {
+			List<Map.Entry<Identifier, byte[]>> out = new ArrayList<>();
+			delegate.listResources(type, namespace, prefix, (id, supplier) -> {
+				byte[] data = read(supplier);
+				out.add(Map.entry(id, data));
+				files.putIfAbsent(id, Optional.of(data));
+			});
+			return List.copyOf(out);
+		});
+		for (Map.Entry<Identifier, byte[]> entry : listing) {
+			byte[] data = entry.getValue();
+			output.accept(entry.getKey(), () -> new ByteArrayInputStream(data));
+		}
+	}
+
+	@Override
+	public Set<String> getNamespaces(PackType type) {
+		return namespaces.computeIfAbsent(type, key -> Set.copyOf(delegate.getNamespaces(key)));
+	}
+
+	@Override
+	public <T> T getMetadataSection(MetadataSectionType<T> type) throws IOException {
+		return delegate.getMetadataSection(type);
+	}
+
+	@Override
+	public PackLocationInfo location() {
+		return delegate.location();
+	}
+
+	@Override
+	public void close() {
+		// Not ours to close; see the class comment.
+	}
+
+	private static byte[] read(IoSupplier<InputStream> supplier) {
+		if (supplier == null) {
+			return null;
+		}
+		try (InputStream in = supplier.get()) {
+			return in.readAllBytes();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package savage.tree_engine.datapack;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.Strictness;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The hash of what a datapack file means rather than how it is written.
+ *
+ * Session ids used to be taken over the raw bytes, so saving a file the
+ * editor had merely reformatted - indentation, key order, {@code 1.0} for
+ * {@code 1} - minted a new session and a full compile for a pack the game
+ * could not tell apart from the last one. A JSON file is hashed instead in a
+ * canonical form: parsed, keys sorted at every level, numbers in their
+ * shortest exact spelling, no whitespace. Anything that is not JSON, or does
+ * not parse, keeps its raw hash; the loader will say what is wrong with it.
+ *
+ * <p>Parsed strictly. A lenient parse accepts comments, single quotes and
+ * trailing text, and would give a file the loader rejects the canonical hash
+ * of the valid file it resembles - answering its upload with the session
+ * compiled from that one instead of the error.
+ *
+ * <p>Canonicalising costs a parse, so the result is remembered by raw hash:
+ * each distinct version of a file is parsed once, and a pack that differs
+ * from the last by one file pays for one. The same map is what lets a
+ * manifest, which carries only raw hashes, be turned into a session id; see
+ * {@link PackContents#fingerprint(Map)}.
+ */
+final class CanonicalJson {
+	private static final int MAX_ENTRIES = 50_000;
+
+	private static final TypeAdapter<JsonElement> ELEMENTS = new Gson().getAdapter(JsonElement.class);
+
+	private static final LinkedHashMap<String, String> BY_RAW_HASH = new LinkedHashMap<>(1024, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	private CanonicalJson() {
+	}
+
+	/** The canonical hash of {@code file}, computed at most once per content. */
+	static String hash(PackContents.File file) {
+		String known = known(file.hash());
+		if (known != null) {
+			return known;
+		}
+		String canonical = file.id().getPath().endsWith(".json") ? canonicalHash(file.bytes()) : null;
+		String result = canonical != null ? canonical : file.hash();
+		synchronized (BY_RAW_HASH) {
+			BY_RAW_HASH.put(file.hash(), result);
+		}
+		return result;
+	}
+
+	/** The canonical hash for content with this raw hash, or null if it has not been seen. */
+	static String known(String rawHash) {
+		synchronized (BY_RAW_HASH) {
+			return BY_RAW_HASH.get(rawHash);
+		}
+	}
+
+	private static String canonicalHash(byte[] bytes) {
+		JsonElement json;
+		try (JsonReader reader = new JsonReader(
+			new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8))) {
+			reader.setStrictness(Strictness.STRICT);
+			// Not JsonParser, which makes any reader lenient while it parses.
+			json = ELEMENTS.read(reader);
+			if (reader.peek() != JsonToken.END_DOCUMENT) {
+				return null;
+			}
+		} catch (Exception e) {
+			return null;
+		}
+		StringWriter out = new StringWriter(bytes.length);
+		try (JsonWriter writer = new JsonWriter(out)) {
+			writer.setSerializeNulls(true);
+			write(writer, json);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return PackContents.hash(out.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void write(JsonWriter writer, JsonElement json) throws IOException {
+		if (json.isJsonObject()) {
+			writer.beginObject();
+			JsonObject object = json.getAsJsonObject();
+			for (Map.Entry<String, JsonElement> entry : new TreeMap<>(object.asMap()).entrySet()) {
+				writer.name(entry.getKey());
+				write(writer, entry.getValue());
+			}
+			writer.endObject();
+		} else if (json.isJsonArray()) {
+			writer.beginArray();
+			for (JsonElement element : (JsonArray) json) {
+				write(writer, element);
+			}
+			writer.endArray();
+		} else if (json.isJsonPrimitive()) {
+			JsonPrimitive primitive = json.getAsJsonPrimitive();
+			if (primitive.isNumber()) {
+				writer.jsonValue(canonicalNumber(primitive.getAsString()));
+			} else if (primitive.isBoolean()) {
+				writer.value(primitive.getAsBoolean());
+			} else {
+				writer.value(primitive.getAsString());
+			}
+		} else {
+			writer.nullValue();
+		}
+	}
+
+	/** {@code 1.0}, {@code 1e0} and {@code 1} are one number to every codec. */
+	private static String canonicalNumber(String number) {
+		try {
+			BigDecimal value = new BigDecimal(number).stripTrailingZeros();
+			return value.signum() == 0 ? "0" : value.toString();
+		} catch (NumberFormatException e) {
+			return number;
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package savage.tree_engine.datapack;
+
+import com.google.gson.JsonElement;
+import com.mojang.datafixers.util.Pair;
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.DataResult;
+import com.mojang.serialization.DynamicOps;
+import com.mojang.serialization.JsonOps;
+import com.mojang.serialization.Lifecycle;
+import net.minecraft.core.HolderGetter;
+import net.minecraft.core.HolderOwner;
+import net.minecraft.core.Registry;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.resources.RegistryDataLoader;
+import net.minecraft.resources.RegistryOps;
+import net.minecraft.resources.ResourceKey;
+import savage.tree_engine.api.ApiServer;
+
+import java.lang.reflect.RecordComponent;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decoded configured and placed features, kept across compiles and
+ * sessions, so a recompile after a one-file edit decodes that one file.
+ *
+ * Even when a compile only reloads the feature registries, it decodes every
+ * feature in them - vanilla's few hundred as well as the pack's - although
+ * all but one file are byte for byte what the last compile decoded. The
+ * loader cannot be handed decoded values, so this sits inside it instead: the
+ * registries' element codec is wrapped, and an element whose JSON was seen
+ * before is answered from here rather than decoded.
+ *
+ * <p>Content alone does not make a decoded value reusable. A feature holds
+ * references - holders - into other registries, and a holder belongs to the
+ * registry set it was resolved in. So each value is stored with the owner of
+ * every registry its decode looked into, and only reused where all of those
+ * owners are the same objects again. In practice that means references into
+ * the server's own registries, which every compile over vanilla shares; a
+ * feature referring to something the same compile is still loading is
+ * decoded afresh, which is the only correct answer for it.
+ *
+ * <p>Such a feature is not stored either. Its owners are that compile's own
+ * registries, which no later compile will have again, so the entry could
+ * never be reused - and, being static, it would hold the whole registry set
+ * it points into long after the session it belonged to was evicted.
+ *
+ * <p>Within one compile a value is handed out at most once: a registry
+ * refuses the same object under two ids, and two files can have identical
+ * content.
+ */
+final class FeatureCache {
+	/** Comfortably more than vanilla's features plus a few large packs'. */
+	private static final int MAX_ENTRIES = 20_000;
+
+	private static final Set<ResourceKey<? extends Registry<?>>> CACHED = Set.of(
+		Registries.CONFIGURED_FEATURE, Registries.PLACED_FEATURE);
+
+	private static final LinkedHashMap<Key, Entry> ENTRIES = new LinkedHashMap<>(1024, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	private FeatureCache() {
+	}
+
+	/** One compile's use of the cache. */
+	static final class Scope {
+		private final Set<Object> shared;
+		private final Set<Object> handedOut = Collections.synchronizedSet(
+			Collections.newSetFromMap(new IdentityHashMap<>()));
+		private final AtomicInteger hits = new AtomicInteger();
+		private final AtomicInteger misses = new AtomicInteger();
+
+		/**
+		 * @param shared the server's own registries, by identity; only values
+		 *               whose references all resolved into these are stored
+		 */
+		Scope(Set<Object> shared) {
+			this.shared = shared;
+		}
+
+		int hits() {
+			return hits.get();
+		}
+
+		int misses() {
+			return misses.get();
+		}
+	}
+
+	/**
+	 * {@code data} with its element codec answered from the cache, if it is a
+	 * feature registry; otherwise {@code data} itself.
+	 */
+	static <T> RegistryDataLoader.RegistryData<T> wrap(RegistryDataLoader.RegistryData<T> data, Scope scope) {
+		if (!CACHED.contains(data.key())) {
+			return data;
+		}
+		return withCodec(data, new CachingCodec<>(data.key(), data.elementCodec(), scope));
+	}
+
+	/**
+	 * A copy of {@code data} with a different element codec. Copied through
+	 * the record's own constructor, finding the codec by type, so the other
+	 * components - whatever this version of the game has - carry over as they
+	 * are. If that fails the original is returned and nothing is cached.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> RegistryDataLoader.RegistryData<T> withCodec(
+		RegistryDataLoader.RegistryData<T> data, Codec<T> codec) {
+		try {
+			RecordComponent[] components = data.getClass().getRecordComponents();
+			Class<?>[] types = new Class<?>[components.length];
+			Object[] values = new Object[components.length];
+			for (int i = 0; i < components.length; i++) {
+				types[i] = components[i].getType();
+				values[i] = types[i] == Codec.class ? codec : components[i].getAccessor().invoke(data);
+			}
+			return (RegistryDataLoader.RegistryData<T>) data.getClass()
+				.getDeclaredConstructor(types)
+				.newInstance(values);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			ApiServer.LOGGER.debug("Cannot wrap the codec of {}; not caching it", data.key(), e);
+			return data;
+		}
+	}
+
+	private record Key(ResourceKey<? extends Registry<?>> registry, JsonElement json) {
+	}
+
+	/**
+	 * @param owners registry to the owner the decode resolved references in
+	 */
+	private record Entry(Object value, Map<ResourceKey<?>, Object> owners) {
+	}
+
+	private static final class CachingCodec<T> implements Codec<T> {
+		private final ResourceKey<? extends Registry<?>> registry;
+		private final Codec<T> delegate;
+		private final Scope scope;
+
+		CachingCodec(ResourceKey<? extends Registry<?>> registry, Codec<T> delegate, Scope scope) {
+			this.registry = registry;
+			this.delegate = delegate;
+			this.scope = scope;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <O> DataResult<Pair<T, O>> decode(DynamicOps<O> ops, O input) {
+			if (!(ops instanceof RegistryOps<O> registryOps) || !(input instanceof JsonElement json)) {
+				return delegate.decode(ops, input);
+			}
+			Key key = new Key(registry, json);
+			Entry entry;
+			synchronized (ENTRIES) {
+				entry = ENTRIES.get(key);
+			}
+			if (entry != null && stillValid(entry, registryOps) && scope.handedOut.add(entry.value())) {
+				scope.hits.incrementAndGet();
+				return DataResult.success(Pair.of((T) entry.value(), ops.empty()));
+			}
+
+			scope.misses.incrementAndGet();
+			Map<ResourceKey<?>, Object> owners = Collections.synchronizedMap(new HashMap<>());
+			RegistryOps<JsonElement> recording = RegistryOps.create(JsonOps.INSTANCE,
+				new RegistryOps.RegistryInfoLookup() {
+					@Override
+					public <E> Optional<RegistryOps.RegistryInfo<E>> lookup(
+						ResourceKey<? extends Registry<? extends E>> lookupKey) {
+						Optional<HolderOwner<E>> owner = registryOps.owner(lookupKey);
+						Optional<HolderGetter<E>> getter = registryOps.getter(lookupKey);
+						if (owner.isEmpty() || getter.isEmpty()) {
+							return Optional.empty();
+						}
+						owners.put(lookupKey, owner.get());
+						return Optional.of(new RegistryOps.RegistryInfo<>(owner.get(), getter.get(), Lifecycle.stable()));
+					}
+				});
+			DataResult<Pair<T, JsonElement>> result = delegate.decode(recording, json);
+			result.result().ifPresent(decoded -> {
+				if (scope.handedOut.add(decoded.getFirst())
+					&& scope.shared.containsAll(owners.values())) {
+					synchronized (ENTRIES) {
+						ENTRIES.put(key, new Entry(decoded.getFirst(), Map.copyOf(owners)));
+					}
+				}
+			});
+			return result.map(decoded -> Pair.of(decoded.getFirst(), (O) decoded.getSecond()));
+		}
+
+		@Override
+		public <O> DataResult<O> encode(T input, DynamicOps<O> ops, O prefix) {
+			return delegate.encode(input, ops, prefix);
+		}
+
+		private static boolean stillValid(Entry entry, RegistryOps<?> ops) {
+			for (Map.Entry<ResourceKey<?>, Object> owner : entry.owners().entrySet()) {
+				@SuppressWarnings("unchecked")
+				ResourceKey<? extends Registry<?>> key = (ResourceKey<? extends Registry<?>>) owner.getKey();
+				if (ops.owner(key).orElse(null) != owner.getValue()) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
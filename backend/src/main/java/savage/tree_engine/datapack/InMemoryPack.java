@@ -9,9 +9,12 @@ import net.minecraft.server.packs.metadata.MetadataSectionType;
 import net.minecraft.server.packs.repository.PackSource;
 import net.minecraft.server.packs.resources.IoSupplier;
 
-import java.io.ByteArrayInputStream;
 import java.io.InputStream;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -24,15 +27,40 @@ import java.util.Set;
  * it to Minecraft's registry loader without ever touching disk. Keys are
  * addressed the way the game addresses datapack files: a namespace plus a
  * path like {@code worldgen/configured_feature/my_tree.json}.
+ *
+ * <p>"In memory" includes mapped: a file's bytes may be a slice of a
+ * {@link PackArchive}'s mapping rather than a heap array, and are streamed
+ * from wherever they are without being copied first.
  */
 public final class InMemoryPack implements PackResources {
 	private final PackLocationInfo location;
-	private final Map<Identifier, byte[]> entries;
+	private final Map<Identifier, ByteBuffer> entries;
+	/**
+	 * Namespace to that namespace's paths, sorted. The loader lists one
+	 * directory per registry, and in a sorted array everything under a
+	 * prefix is one contiguous run found by binary search - a listing costs
+	 * what it returns, not a pass over every file in the pack.
+	 */
+	private final Map<String, String[]> paths;
+	private final Set<String> namespaces;
 
-	public InMemoryPack(String id, Map<Identifier, byte[]> entries) {
+	public InMemoryPack(String id, Map<Identifier, ByteBuffer> entries) {
 		this.location = new PackLocationInfo(
 			id, Component.literal(id), PackSource.BUILT_IN, Optional.empty());
 		this.entries = Map.copyOf(entries);
+
+		Map<String, List<String>> byNamespace = new HashMap<>();
+		for (Identifier key : this.entries.keySet()) {
+			byNamespace.computeIfAbsent(key.getNamespace(), k -> new ArrayList<>()).add(key.getPath());
+		}
+		Map<String, String[]> index = new HashMap<>();
+		byNamespace.forEach((namespace, list) -> {
+			String[] sorted = list.toArray(String[]::new);
+			Arrays.sort(sorted);
+			index.put(namespace, sorted);
+		});
+		this.paths = Map.copyOf(index);
+		this.namespaces = Set.copyOf(index.keySet());
 	}
 
 	public int size() {
@@ -49,31 +77,31 @@ public final class InMemoryPack implements PackResources {
 	@Override
 	public IoSupplier<InputStream> getResource(PackType type, Identifier id) {
 		if (type != PackType.SERVER_DATA) return null;
-		byte[] data = entries.get(id);
+		ByteBuffer data = entries.get(id);
 		if (data == null) return null;
-		return () -> new ByteArrayInputStream(data);
+		return () -> new BufferInputStream(data.duplicate());
 	}
 
 	@Override
 	public void listResources(PackType type, String namespace, String prefix, ResourceOutput output) {
 		if (type != PackType.SERVER_DATA) return;
-		for (Map.Entry<Identifier, byte[]> e : entries.entrySet()) {
-			Identifier id = e.getKey();
-			if (!id.getNamespace().equals(namespace)) continue;
-			if (!id.getPath().startsWith(prefix)) continue;
-			byte[] data = e.getValue();
-			output.accept(id, () -> new ByteArrayInputStream(data));
+		String[] sorted = paths.get(namespace);
+		if (sorted == null) return;
+
+		int from = Arrays.binarySearch(sorted, prefix);
+		if (from < 0) {
+			from = -from - 1;
+		}
+		for (int i = from; i < sorted.length && sorted[i].startsWith(prefix); i++) {
+			Identifier id = Identifier.fromNamespaceAndPath(namespace, sorted[i]);
+			ByteBuffer data = entries.get(id);
+			output.accept(id, () -> new BufferInputStream(data.duplicate()));
 		}
 	}
 
 	@Override
 	public Set<String> getNamespaces(PackType type) {
-		if (type != PackType.SERVER_DATA) return Set.of();
-		Set<String> namespaces = new HashSet<>();
-		for (Identifier id : entries.keySet()) {
-			namespaces.add(id.getNamespace());
-		}
-		return namespaces;
+		return type == PackType.SERVER_DATA ? namespaces : Set.of();
 	}
 
 	@Override
@@ -90,4 +118,40 @@ public final class InMemoryPack implements PackResources {
 	public void close() {
 		// Nothing to release - the backing map is garbage collected with the pack.
 	}
+
+	/**
+	 * Reads a buffer without copying it first. The buffer may be a slice of
+	 * a mapped archive, and the point of mapping is that its bytes are only
+	 * ever touched where they lie.
+	 */
+	private static final class BufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] out, int offset, int length) {
+			if (length == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(length, buffer.remaining());
+			buffer.get(out, offset, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
 }
@@ -0,0 +1,97 @@
+package savage.tree_engine.datapack;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Uploaded packs by fingerprint, for stacking into sessions; see
+ * {@link PackLayers}.
+ *
+ * A layer is uploaded once and then named by id in as many sessions as use
+ * it, so what is kept here is the whole {@link PackContents} - and with it
+ * the {@link InMemoryPack} it builds - not individual files the way
+ * {@link BlobStore} keeps them. Every pack uploaded whole into a session is
+ * kept here too, so any such session can serve as the bottom of another one
+ * by its id. A patched session's top layer is not: it is one edit of many,
+ * nobody stacks on it, and each would push out a layer somebody might.
+ *
+ * <p>Bounded by the bytes of the layers' files that are on the heap. A layer
+ * unpacked from an archive lives in a mapping instead, costs the heap next to
+ * nothing and is not counted, so a library sent as a zip is not pushed out
+ * by the project files compiled on top of it; the count ceiling still bounds
+ * how many of those are held.
+ */
+public final class LayerStore {
+	private static final int MAX_LAYERS = 64;
+
+	private final long maxBytes;
+	private final LinkedHashMap<String, Entry> layers = new LinkedHashMap<>(16, 0.75f, true);
+	private long heldBytes;
+
+	public LayerStore(long maxBytes) {
+		this.maxBytes = Math.max(0, maxBytes);
+	}
+
+	/** The layer with this fingerprint, or null if it is not held. */
+	public synchronized PackContents get(String id) {
+		Entry entry = layers.get(id);
+		return entry != null ? entry.contents() : null;
+	}
+
+	public void putAll(PackLayers stack) {
+		for (PackContents layer : stack.layers()) {
+			put(layer);
+		}
+	}
+
+	public synchronized void put(PackContents contents) {
+		String id = contents.fingerprint();
+		if (layers.get(id) != null) {
+			return;
+		}
+		long bytes = heapBytes(contents);
+		if (bytes > maxBytes) {
+			return;
+		}
+		layers.put(id, new Entry(contents, bytes));
+		heldBytes += bytes;
+
+		// Never the layer just stored: whoever stored it is about to use it.
+		var eldest = layers.values().iterator();
+		while ((heldBytes > maxBytes || layers.size() > MAX_LAYERS) && layers.size() > 1) {
+			heldBytes -= eldest.next().bytes();
+			eldest.remove();
+		}
+	}
+
+	/** Of {@code ids}, the ones not held, each once, in the order given. */
+	public synchronized List<String> missing(Collection<String> ids) {
+		List<String> out = new ArrayList<>();
+		for (String id : new LinkedHashSet<>(ids)) {
+			if (!layers.containsKey(id)) {
+				out.add(id);
+			}
+		}
+		return out;
+	}
+
+	public synchronized int size() {
+		return layers.size();
+	}
+
+	private static long heapBytes(PackContents contents) {
+		long total = 0;
+		for (PackContents.File file : contents.files()) {
+			if (file.onHeap()) {
+				total += file.length();
+			}
+		}
+		return total;
+	}
+
+	private record Entry(PackContents contents, long bytes) {
+	}
+}
@@ -0,0 +1,179 @@
+package savage.tree_engine.datapack;
+
+import net.minecraft.resources.Identifier;
+import savage.tree_engine.api.ApiException;
+import savage.tree_engine.api.ApiServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads a datapack uploaded as a zip, for packs too large to send as JSON.
+ *
+ * A modpack's worldgen is tens of thousands of files and hundreds of
+ * megabytes. Sent as JSON that is a string per file, then a byte array per
+ * file, all on a heap the game server is also using. Instead the archive is
+ * unpacked as it arrives - one entry at a time, hashed on the way through -
+ * into a temporary file of the files' bytes laid end to end, and that file is
+ * mapped. Each file of the resulting {@link PackContents} is a slice of the
+ * mapping, so the pack's bytes live in the page cache rather than on the heap,
+ * and the registry loader streams them from there; see {@link InMemoryPack}.
+ *
+ * <p>Unpacking rather than mapping the zip itself is deliberate: zip entries
+ * are normally deflated, and a compressed entry cannot be sliced.
+ *
+ * <p>Only {@code data/} is read. An archive of a real datapack also carries
+ * {@code pack.mcmeta} and perhaps {@code assets/}, which a preview has no use
+ * for, and is often zipped with the pack's own folder at the top; both are
+ * accepted rather than rejected. What is skipped still has to be inflated to
+ * get past it, so it counts against the same limit.
+ *
+ * <p>The spool only lives as long as something maps it. An archive the
+ * backend already holds - the same pack uploaded again - is recognised from
+ * its hashes once unpacked, and the held pack is answered instead; the
+ * spool is then never mapped, and goes at once.
+ */
+final class PackArchive {
+	/**
+	 * What the archive may inflate to, skipped entries included: also the
+	 * bound on a zip bomb.
+	 */
+	private static final long MAX_UNPACKED_BYTES = 1024L * 1024 * 1024;
+
+	private PackArchive() {
+	}
+
+	/**
+	 * @param held a pack the backend already holds, by fingerprint, or null
+	 *             if it holds none by that fingerprint
+	 */
+	static PackContents read(InputStream body, Function<String, PackContents> held)
+		throws IOException {
+		Path spool = Files.createTempFile("tree-engine-pack-", ".bin");
+		// Deleted once the last handle on it closes. A mapping outlives its
+		// channel and, on Windows, holds a handle of its own, so this is
+		// straight away on a hit or a failure, and otherwise as soon as no
+		// session maps it any more - rather than at exit, as deleting a
+		// mapped file there used to be put off to.
+		try (FileChannel channel = FileChannel.open(spool,
+			StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+
+			List<Entry> entries = unpack(body, channel);
+
+			Map<String, String> manifest = new HashMap<>();
+			for (Entry entry : entries) {
+				manifest.put(entry.path(), entry.hash());
+			}
+			String fingerprint = PackContents.fingerprint(manifest);
+			PackContents known = fingerprint != null ? held.apply(fingerprint) : null;
+			if (known != null) {
+				return known;
+			}
+
+			MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			TreeMap<String, PackContents.File> files = new TreeMap<>();
+			for (Entry entry : entries) {
+				ByteBuffer content = mapping.slice(entry.offset(), entry.length()).asReadOnlyBuffer();
+				files.put(entry.path(), new PackContents.File(entry.id(), content, entry.hash()));
+			}
+			return PackContents.ofFiles(files);
+		}
+	}
+
+	/** Writes every {@code data/} file's bytes to {@code out}, end to end. */
+	private static List<Entry> unpack(InputStream body, FileChannel out) throws IOException {
+		List<Entry> entries = new ArrayList<>();
+		Map<String, String> named = new HashMap<>();
+		byte[] buffer = new byte[64 * 1024];
+		long written = 0;
+		long inflated = 0;
+
+		try (ZipInputStream zip = new ZipInputStream(body)) {
+			ZipEntry zipEntry;
+			while ((zipEntry = zip.getNextEntry()) != null) {
+				String path = dataPath(zipEntry.getName());
+				if (zipEntry.isDirectory() || path == null) {
+					// Read through here rather than left to getNextEntry,
+					// which would inflate it just the same, but uncounted.
+					int n;
+					while ((n = zip.read(buffer)) > 0) {
+						inflated = checkInflated(inflated + n);
+					}
+					continue;
+				}
+				// A pack zipped in its folder may also carry a stray copy of a
+				// file at the root, or the same file under a backslashed name.
+				PackContents.claim(named, path, zipEntry.getName());
+				PackContents.checkCount(entries.size() + 1, PackContents.MAX_ARCHIVE_FILES);
+				// Before its bytes, so a bad path fails the upload straight away.
+				Identifier id = PackContents.toIdentifier(path);
+
+				MessageDigest digest = PackContents.sha256();
+				long start = written;
+				int n;
+				while ((n = zip.read(buffer)) > 0) {
+					written += n;
+					inflated = checkInflated(inflated + n);
+					digest.update(buffer, 0, n);
+					ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, n);
+					while (chunk.hasRemaining()) {
+						out.write(chunk);
+					}
+				}
+				entries.add(new Entry(path, id, (int) start, (int) (written - start),
+					HexFormat.of().formatHex(digest.digest())));
+			}
+		} catch (ZipException e) {
+			throw ApiException.badRequest("Request body is not a valid zip archive", e.getMessage());
+		}
+		ApiServer.LOGGER.info("Unpacked datapack archive: {} files, {} MiB",
+			entries.size(), written / (1024 * 1024));
+		return entries;
+	}
+
+	private static long checkInflated(long inflated) {
+		if (inflated > MAX_UNPACKED_BYTES) {
+			throw ApiException.payloadTooLarge(
+				"Datapack unpacks to more than " + (MAX_UNPACKED_BYTES / (1024 * 1024)) + " MiB");
+		}
+		return inflated;
+	}
+
+	/**
+	 * The entry's path from {@code data/} on, or null if it is not under
+	 * {@code data/} either at the root or inside one top-level folder.
+	 */
+	private static String dataPath(String name) {
+		String path = name.replace('\\', '/');
+		if (path.startsWith("data/")) {
+			return path;
+		}
+		int slash = path.indexOf('/');
+		if (slash > 0 && path.startsWith("data/", slash + 1)) {
+			return path.substring(slash + 1);
+		}
+		return null;
+	}
+
+	/** Where one file landed in the spool. */
+	private record Entry(String path, Identifier id, int offset, int length, String hash) {
+	}
+}
@@ -0,0 +1,418 @@
+package savage.tree_engine.datapack;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import net.minecraft.resources.Identifier;
+import savage.tree_engine.api.ApiException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * A datapack's files after validation: each one's resource id, its bytes as
+ * the registry loader will read them, and a hash of those bytes.
+ *
+ * This is what a session keeps of its source. Holding it is what makes a
+ * session patchable - a small edit produces a new {@code PackContents} that
+ * shares every untouched file with its parent, bytes, hash and all, so only
+ * the files that actually changed are ever encoded or hashed again. The
+ * session fingerprint is taken over the per-file hashes for the same reason:
+ * a patched pack's id costs a pass over the paths, not over the content.
+ *
+ * <p>The fingerprint depends on nothing but paths and (canonical) hashes,
+ * which is also what lets a client name a pack by its manifest alone; see
+ * {@link #fingerprint(Map)}.
+ *
+ * <p>Immutable, so parent and child can share entries freely.
+ */
+public final class PackContents {
+	/** Guards against a client sending an unbounded number of tiny files. */
+	private static final int MAX_FILES = 10_000;
+	/** The same guard for archives, which exist for packs far past the first. */
+	static final int MAX_ARCHIVE_FILES = 200_000;
+
+	private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+	private static final PackContents EMPTY = new PackContents(new TreeMap<>());
+
+	// Sorted by path, so the fingerprint does not depend on upload order.
+	private final TreeMap<String, File> files;
+	private String fingerprint;
+	private InMemoryPack pack;
+
+	private PackContents(TreeMap<String, File> files) {
+		this.files = files;
+	}
+
+	/**
+	 * Validates and encodes a whole datapack. Anything outside
+	 * {@code data/<namespace>/...} is rejected loudly rather than silently
+	 * ignored - a datapack that half-loads is worse than one that fails.
+	 */
+	public static PackContents of(Map<String, String> files) {
+		// An empty datapack is a normal state, not an error: a project with no
+		// trees saved yet has nothing under data/. Rejecting it used to break
+		// previewing entirely until the user saved any file at all.
+		if (files == null || files.isEmpty()) {
+			return EMPTY;
+		}
+		checkCount(files.size(), MAX_FILES);
+		TreeMap<String, File> out = new TreeMap<>();
+		Map<String, String> named = new HashMap<>();
+		for (Map.Entry<String, String> entry : files.entrySet()) {
+			out.put(claim(named, entry.getKey()), File.of(entry.getKey(), entry.getValue()));
+		}
+		return new PackContents(out);
+	}
+
+	/**
+	 * Reads a {@code {"files": {path: content}}} upload straight off the
+	 * wire, validating, encoding and hashing each file as it is reached.
+	 *
+	 * The same result as {@link #of}, without ever holding the body as one
+	 * string or the files as a map of strings: each file's text exists only
+	 * until its bytes are taken, so peak memory is roughly the encoded pack
+	 * rather than three copies of it.
+	 */
+	public static PackContents read(JsonReader in) throws IOException {
+		TreeMap<String, File> out = new TreeMap<>();
+		Map<String, String> named = new HashMap<>();
+		in.beginObject();
+		while (in.hasNext()) {
+			if (!in.nextName().equals("files") || in.peek() == JsonToken.NULL) {
+				in.skipValue();
+				continue;
+			}
+			in.beginObject();
+			while (in.hasNext()) {
+				String path = in.nextName();
+				if (in.peek() == JsonToken.NULL) {
+					throw ApiException.badRequest("File has null content: " + path);
+				}
+				out.put(claim(named, path), File.of(path, in.nextString()));
+				checkCount(out.size(), MAX_FILES);
+			}
+			in.endObject();
+		}
+		in.endObject();
+		// See of(): an empty datapack is a normal state.
+		return out.isEmpty() ? EMPTY : new PackContents(out);
+	}
+
+	/**
+	 * Builds a pack from a manifest of path to content hash, taking every
+	 * file's bytes from {@code blobs}. Returns null if any of them is not
+	 * held, which the caller reports as missing rather than failing.
+	 *
+	 * @param blobs content by hash, answering null for any not held
+	 */
+	public static PackContents assemble(Map<String, String> manifest, Function<String, byte[]> blobs) {
+		if (manifest == null || manifest.isEmpty()) {
+			return EMPTY;
+		}
+		checkCount(manifest.size(), MAX_FILES);
+		TreeMap<String, File> out = new TreeMap<>();
+		Map<String, String> named = new HashMap<>();
+		for (Map.Entry<String, String> entry : manifest.entrySet()) {
+			String path = claim(named, entry.getKey());
+			byte[] bytes = blobs.apply(checkHash(entry.getValue()));
+			if (bytes == null) {
+				return null;
+			}
+			out.put(path, new File(toIdentifier(path), ByteBuffer.wrap(bytes), entry.getValue()));
+		}
+		return new PackContents(out);
+	}
+
+	/**
+	 * This pack with {@code changed} added or replaced and {@code removed}
+	 * taken out. Only the changed files are encoded and hashed; every other
+	 * entry is the parent's own. Paths are matched as normalised, so a path
+	 * written with backslashes replaces the same path written with slashes.
+	 */
+	public PackContents patch(Map<String, String> changed, Collection<String> removed) {
+		TreeMap<String, File> out = new TreeMap<>(files);
+		if (removed != null) {
+			for (String path : removed) {
+				if (out.remove(normalise(path)) == null) {
+					throw ApiException.badRequest("Cannot remove a file the session does not have: " + path);
+				}
+			}
+		}
+		if (changed != null) {
+			Map<String, String> named = new HashMap<>();
+			for (Map.Entry<String, String> entry : changed.entrySet()) {
+				out.put(claim(named, entry.getKey()), File.of(entry.getKey(), entry.getValue()));
+			}
+		}
+		// A pack that came in as an archive may already be past the limit for
+		// uploads of text; an edit to it should not be refused for that.
+		checkCount(out.size(), files.size() > MAX_FILES ? MAX_ARCHIVE_FILES : MAX_FILES);
+		return new PackContents(out);
+	}
+
+	/** A pack of files already validated and hashed; see {@link PackArchive}. */
+	static PackContents ofFiles(TreeMap<String, File> files) {
+		return files.isEmpty() ? EMPTY : new PackContents(files);
+	}
+
+	/**
+	 * Resource ids whose content differs between this pack and
+	 * {@code other}: added, removed or changed on either side. Compares
+	 * hashes, never content.
+	 */
+	public Set<Identifier> differingFrom(PackContents other) {
+		Set<Identifier> out = new HashSet<>();
+		for (Map.Entry<String, File> entry : files.entrySet()) {
+			File theirs = other.files.get(entry.getKey());
+			if (theirs == null || !theirs.hash().equals(entry.getValue().hash())) {
+				out.add(entry.getValue().id());
+			}
+		}
+		for (Map.Entry<String, File> entry : other.files.entrySet()) {
+			if (!files.containsKey(entry.getKey())) {
+				out.add(entry.getValue().id());
+			}
+		}
+		return out;
+	}
+
+	/** Every file's resource id. */
+	public Set<Identifier> ids() {
+		Set<Identifier> out = new HashSet<>();
+		for (File file : files.values()) {
+			out.add(file.id());
+		}
+		return out;
+	}
+
+	/**
+	 * A stable fingerprint of the contents. Identical datapacks produce the
+	 * same id, so re-sending an unchanged pack reuses the already-compiled
+	 * registry instead of rebuilding it - and "identical" means identical to
+	 * the game: files are compared by {@link CanonicalJson canonical hash}, so
+	 * a reformatted file does not count as a change.
+	 */
+	public synchronized String fingerprint() {
+		if (fingerprint == null) {
+			Map<String, String> canonical = new TreeMap<>();
+			for (Map.Entry<String, File> entry : files.entrySet()) {
+				canonical.put(entry.getKey(), CanonicalJson.hash(entry.getValue()));
+			}
+			fingerprint = digest(canonical);
+		}
+		return fingerprint;
+	}
+
+	/**
+	 * The fingerprint a pack with this manifest of path to content hash
+	 * would have, without needing any of its content - provided every one of
+	 * those contents has been seen before, since the fingerprint is over their
+	 * canonical forms. Returns null otherwise; the caller then has to
+	 * assemble the pack and ask it.
+	 */
+	public static String fingerprint(Map<String, String> manifest) {
+		Map<String, String> canonical = new TreeMap<>();
+		Map<String, String> named = new HashMap<>();
+		for (Map.Entry<String, String> entry : manifest.entrySet()) {
+			String path = claim(named, entry.getKey());
+			String known = CanonicalJson.known(checkHash(entry.getValue()));
+			if (known == null) {
+				return null;
+			}
+			canonical.put(path, known);
+		}
+		return digest(canonical);
+	}
+
+	private static String digest(Map<String, String> sortedHashes) {
+		MessageDigest digest = sha256();
+		for (Map.Entry<String, String> entry : sortedHashes.entrySet()) {
+			digest.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(entry.getValue().getBytes(StandardCharsets.US_ASCII));
+			digest.update((byte) 0);
+		}
+		return HexFormat.of().formatHex(digest.digest()).substring(0, 32);
+	}
+
+	/**
+	 * The files as a pack the registry loader can read. Built once and kept:
+	 * a pack stacked under others is read by every compile above it, and is
+	 * immutable, so every one of them can share it.
+	 */
+	public synchronized InMemoryPack pack() {
+		if (pack == null) {
+			// Already unmodifiable, so the pack takes it as it is rather than
+			// copying it again.
+			pack = new InMemoryPack("tree-engine-pack-" + fingerprint(), files.values().stream()
+				.collect(Collectors.toUnmodifiableMap(File::id, File::content)));
+		}
+		return pack;
+	}
+
+	/** Back to the wire form, for the rare path that needs file text again. */
+	public DatapackPayload toPayload() {
+		Map<String, String> out = new LinkedHashMap<>();
+		for (Map.Entry<String, File> entry : files.entrySet()) {
+			out.put(entry.getKey(), new String(entry.getValue().bytes(), StandardCharsets.UTF_8));
+		}
+		return new DatapackPayload(out);
+	}
+
+	public int size() {
+		return files.size();
+	}
+
+	public Collection<File> files() {
+		return Collections.unmodifiableCollection(files.values());
+	}
+
+	/** The hash every file is addressed by: lowercase hex SHA-256 of its bytes. */
+	public static String hash(byte[] bytes) {
+		return HexFormat.of().formatHex(sha256().digest(bytes));
+	}
+
+	private static String checkHash(String hash) {
+		if (hash == null || !HASH.matcher(hash).matches()) {
+			throw ApiException.badRequest(
+				"Not a content hash (lowercase hex SHA-256): " + hash);
+		}
+		return hash;
+	}
+
+	static void checkCount(int count, int limit) {
+		if (count > limit) {
+			throw ApiException.badRequest(
+				"Datapack contains too many files (" + count + " > " + limit + ")");
+		}
+	}
+
+	static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 unavailable", e);
+		}
+	}
+
+	/**
+	 * One file of the pack.
+	 *
+	 * @param content the file's bytes: a heap array for a file uploaded as
+	 *                text, or a slice of a mapped archive. Shared, so only
+	 *                ever read through a duplicate.
+	 * @param hash    hex SHA-256 of {@code content}
+	 */
+	public record File(Identifier id, ByteBuffer content, String hash) {
+
+		static File of(String path, String content) {
+			if (content == null) {
+				throw ApiException.badRequest("File has null content: " + path);
+			}
+			byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+			return new File(toIdentifier(path), ByteBuffer.wrap(bytes), hash(bytes));
+		}
+
+		public int length() {
+			return content.remaining();
+		}
+
+		/** Whether the bytes are on the Java heap rather than in a mapped file. */
+		public boolean onHeap() {
+			return content.hasArray();
+		}
+
+		/**
+		 * The content as an array: the backing array itself when the file
+		 * was uploaded as text, otherwise a copy.
+		 */
+		public byte[] bytes() {
+			if (content.hasArray() && content.arrayOffset() == 0 && content.position() == 0
+				&& content.remaining() == content.array().length) {
+				return content.array();
+			}
+			byte[] out = new byte[content.remaining()];
+			content.duplicate().get(out);
+			return out;
+		}
+	}
+
+	/**
+	 * The path a pack keys {@code rawPath} under: the one {@link
+	 * #toIdentifier} reads it as, with {@code /} separators and no leading
+	 * slash. Two paths that normalise alike are the same file.
+	 */
+	static String normalise(String rawPath) {
+		String path = rawPath.replace('\\', '/');
+		while (path.startsWith("/")) {
+			path = path.substring(1);
+		}
+		return path;
+	}
+
+	/**
+	 * {@code rawPath} normalised, recorded in {@code named} as the file one
+	 * upload names by it. A second path naming the same file is a 400 that
+	 * quotes both, rather than one silently replacing the other.
+	 *
+	 * @param named normalised path to the raw path that first named it
+	 */
+	static String claim(Map<String, String> named, String rawPath) {
+		return claim(named, normalise(rawPath), rawPath);
+	}
+
+	/** {@link #claim(Map, String)} for a path normalised by the caller. */
+	static String claim(Map<String, String> named, String path, String rawPath) {
+		String earlier = named.putIfAbsent(path, rawPath);
+		if (earlier == null) {
+			return path;
+		}
+		if (earlier.equals(rawPath)) {
+			throw ApiException.badRequest("File appears twice: " + rawPath);
+		}
+		throw ApiException.badRequest("Paths name the same file: " + earlier + " and " + rawPath);
+	}
+
+	static Identifier toIdentifier(String rawPath) {
+		String path = normalise(rawPath);
+		if (path.contains("..")) {
+			throw ApiException.badRequest("Illegal path segment in: " + rawPath);
+		}
+		if (!path.startsWith("data/")) {
+			throw ApiException.badRequest(
+				"Datapack file must live under data/: " + rawPath);
+		}
+
+		String remainder = path.substring("data/".length());
+		int slash = remainder.indexOf('/');
+		if (slash <= 0 || slash == remainder.length() - 1) {
+			throw ApiException.badRequest(
+				"Datapack file must be data/<namespace>/<path>: " + rawPath);
+		}
+
+		String namespace = remainder.substring(0, slash);
+		String resourcePath = remainder.substring(slash + 1);
+		try {
+			return Identifier.fromNamespaceAndPath(namespace, resourcePath);
+		} catch (Exception e) {
+			throw ApiException.badRequest(
+				"Not a valid resource path: " + rawPath, e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package savage.tree_engine.datapack;
+
+import net.minecraft.resources.Identifier;
+import net.minecraft.server.packs.PackResources;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What a session is compiled from: one or more packs, stacked bottom to top
+ * over the server's own, each overriding the ones below it exactly as the
+ * game layers enabled datapacks.
+ *
+ * A project is often small and built on a large library pack that never
+ * changes. Uploaded as one flat pack, every save re-sent, re-hashed and
+ * re-decoded the library along with it. As layers, the library is uploaded
+ * once, kept as a {@link PackContents} and {@link InMemoryPack} of its own,
+ * and compiled once into a session of its own; a session with the project on
+ * top is then a {@link RegistrySet#recompile recompile} of that one, which
+ * only decodes what the top layer reaches.
+ *
+ * <p>A single layer is just a pack, and keeps that pack's fingerprint as its
+ * id, so sessions from flat uploads are named exactly as they always were.
+ *
+ * <p>Immutable.
+ */
+public final class PackLayers {
+	/** Deep enough for library, project and a layer or two between. */
+	static final int MAX_LAYERS = 16;
+
+	private final List<PackContents> layers;
+	private String fingerprint;
+	private Set<Identifier> ids;
+
+	private PackLayers(List<PackContents> layers) {
+		this.layers = List.copyOf(layers);
+	}
+
+	public static PackLayers of(PackContents contents) {
+		return new PackLayers(List.of(contents));
+	}
+
+	/** @param layers bottom first */
+	public static PackLayers of(List<PackContents> layers) {
+		if (layers.isEmpty() || layers.size() > MAX_LAYERS) {
+			throw new IllegalArgumentException("Between 1 and " + MAX_LAYERS + " layers, not " + layers.size());
+		}
+		return new PackLayers(layers);
+	}
+
+	/** The layer edits apply to. */
+	public PackContents top() {
+		return layers.get(layers.size() - 1);
+	}
+
+	/** Every layer but the top, or null if there is only the one. */
+	public PackLayers below() {
+		return layers.size() > 1 ? new PackLayers(layers.subList(0, layers.size() - 1)) : null;
+	}
+
+	/** These layers with the top one replaced; see {@link SessionRoutes} PATCH. */
+	public PackLayers withTop(PackContents top) {
+		List<PackContents> out = new ArrayList<>(layers);
+		out.set(out.size() - 1, top);
+		return new PackLayers(out);
+	}
+
+	public List<PackContents> layers() {
+		return layers;
+	}
+
+	/**
+	 * The session id: the pack's own fingerprint for a single layer, and one
+	 * over the layers' fingerprints, in order, otherwise. The same packs
+	 * stacked differently override each other differently, so order counts.
+	 */
+	public synchronized String fingerprint() {
+		if (fingerprint == null) {
+			if (layers.size() == 1) {
+				fingerprint = top().fingerprint();
+			} else {
+				MessageDigest digest = PackContents.sha256();
+				digest.update("layers".getBytes(StandardCharsets.US_ASCII));
+				for (PackContents layer : layers) {
+					digest.update((byte) 0);
+					digest.update(layer.fingerprint().getBytes(StandardCharsets.US_ASCII));
+				}
+				fingerprint = HexFormat.of().formatHex(digest.digest()).substring(0, 32);
+			}
+		}
+		return fingerprint;
+	}
+
+	/** The layers as packs for the loader, bottom first. */
+	public List<PackResources> packs() {
+		return layers.stream().<PackResources>map(PackContents::pack).toList();
+	}
+
+	/** Every resource id in any layer. */
+	public synchronized Set<Identifier> ids() {
+		if (ids == null) {
+			if (layers.size() == 1) {
+				ids = Set.copyOf(top().ids());
+			} else {
+				Set<Identifier> out = new HashSet<>();
+				for (PackContents layer : layers) {
+					out.addAll(layer.ids());
+				}
+				ids = Set.copyOf(out);
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Resource ids whose content may differ between these layers and
+	 * {@code other}'s. Compared layer by layer, so a layer both have in the
+	 * same place - the same object, or the same fingerprint - costs nothing
+	 * however large it is, which is the whole point of keeping a library as a
+	 * layer. A layer only one side has counts in full.
+	 */
+	public Set<Identifier> differingFrom(PackLayers other) {
+		Set<Identifier> out = new HashSet<>();
+		int depth = Math.max(layers.size(), other.layers.size());
+		for (int i = 0; i < depth; i++) {
+			PackContents mine = i < layers.size() ? layers.get(i) : null;
+			PackContents theirs = i < other.layers.size() ? other.layers.get(i) : null;
+			if (mine == theirs
+				|| mine != null && theirs != null && mine.fingerprint().equals(theirs.fingerprint())) {
+				continue;
+			}
+			if (mine == null) {
+				out.addAll(theirs.ids());
+			} else if (theirs == null) {
+				out.addAll(mine.ids());
+			} else {
+				out.addAll(mine.differingFrom(theirs));
+			}
+		}
+		return out;
+	}
+
+	/** Distinct files the stack resolves to. */
+	public int fileCount() {
+		return layers.size() == 1 ? top().size() : ids().size();
+	}
+
+	/** The bytes of every layer, counting a file each time a layer has it. */
+	public long sourceBytes() {
+		long total = 0;
+		for (PackContents layer : layers) {
+			for (PackContents.File file : layer.files()) {
+				total += file.length();
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * The files as one wire-form pack, upper layers winning, for
+	 * {@link DatapackDiagnostics}.
+	 */
+	public DatapackPayload toPayload() {
+		if (layers.size() == 1) {
+			return top().toPayload();
+		}
+		Map<String, String> out = new LinkedHashMap<>();
+		for (PackContents layer : layers) {
+			out.putAll(layer.toPayload().files());
+		}
+		return new DatapackPayload(out);
+	}
+}
@@ -0,0 +1,258 @@
+package savage.tree_engine.datapack;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.JsonOps;
+import net.minecraft.core.Holder;
+import net.minecraft.core.HolderGetter;
+import net.minecraft.core.HolderOwner;
+import net.minecraft.core.HolderSet;
+import net.minecraft.core.Registry;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.resources.Identifier;
+import net.minecraft.resources.RegistryOps;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.tags.TagKey;
+import net.minecraft.world.level.levelgen.feature.ConfiguredFeature;
+import net.minecraft.world.level.levelgen.placement.PlacedFeature;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Checks every feature file of a pack at once, without compiling it.
+ *
+ * A compile stops at the first broken file it meets, and
+ * {@link DatapackDiagnostics} can only explain the files the loader named, so
+ * fixing a pack with ten mistakes used to take ten round trips. This parses
+ * every configured and placed feature with its own codec, side by side, and
+ * reports them all.
+ *
+ * <p>A file's verdict depends on its content alone, so it is remembered by
+ * content hash and a file that has not changed since the last save is never
+ * parsed again. That only holds because references are kept out of it: a
+ * feature referring to another one is not resolved against the rest of the
+ * pack while parsing. Every reference the game does not know - an element or
+ * a tag - is accepted as a stand-in and remembered, and checked against the pack's files afresh on
+ * each request - which is cheap, and is the only part that depends on which
+ * pack the file is in.
+ */
+public final class PackValidator {
+	/** Verdicts kept; far more than any one project's feature files. */
+	private static final int MAX_VERDICTS = 50_000;
+
+	private final MinecraftServer server;
+	private final Executor executor;
+	private final LinkedHashMap<String, Verdict> verdicts = new LinkedHashMap<>(256, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Verdict> eldest) {
+			return size() > MAX_VERDICTS;
+		}
+	};
+
+	/** @param executor where files are parsed; the compile pool */
+	public PackValidator(MinecraftServer server, Executor executor) {
+		this.server = server;
+		this.executor = executor;
+	}
+
+	public Report validate(PackContents contents) {
+		Set<Identifier> ids = contents.ids();
+		List<PackContents.File> checked = new ArrayList<>();
+		List<CompletableFuture<Verdict>> pending = new ArrayList<>();
+		int cached = 0;
+
+		for (PackContents.File file : contents.files()) {
+			Kind kind = Kind.of(file.id());
+			if (kind == null) {
+				continue;
+			}
+			Verdict known = cachedVerdict(kind, file.hash());
+			if (known != null) {
+				cached++;
+			}
+			checked.add(file);
+			pending.add(known != null
+				? CompletableFuture.completedFuture(known)
+				: CompletableFuture.supplyAsync(() -> {
+					Verdict verdict = parse(kind, file);
+					remember(kind, file.hash(), verdict);
+					return verdict;
+				}, executor));
+		}
+
+		List<Problem> problems = new ArrayList<>();
+		for (int i = 0; i < checked.size(); i++) {
+			Verdict verdict = pending.get(i).join();
+			Identifier file = checked.get(i).id();
+			if (verdict.error() != null) {
+				problems.add(new Problem(file, verdict.error()));
+			}
+			for (ResourceKey<?> reference : verdict.unresolved()) {
+				if (!ids.contains(fileFor(reference))) {
+					problems.add(new Problem(file, "refers to " + describe(reference)
+						+ ", which neither the pack nor the game defines"));
+				}
+			}
+			for (TagKey<?> tag : verdict.unresolvedTags()) {
+				if (!ids.contains(fileFor(tag))) {
+					problems.add(new Problem(file, "refers to " + describe(tag)
+						+ ", which neither the pack nor the game defines"));
+				}
+			}
+		}
+		return new Report(checked.size(), cached, problems);
+	}
+
+	private synchronized Verdict cachedVerdict(Kind kind, String hash) {
+		return verdicts.get(kind.name() + ':' + hash);
+	}
+
+	private synchronized void remember(Kind kind, String hash, Verdict verdict) {
+		verdicts.put(kind.name() + ':' + hash, verdict);
+	}
+
+	private Verdict parse(Kind kind, PackContents.File file) {
+		JsonElement json;
+		try (Reader reader = new InputStreamReader(
+			new ByteArrayInputStream(file.bytes()), StandardCharsets.UTF_8)) {
+			json = JsonParser.parseReader(reader);
+		} catch (Exception e) {
+			return new Verdict("not valid JSON (" + e.getMessage() + ")", Set.of(), Set.of());
+		}
+
+		Set<ResourceKey<?>> unresolved = new LinkedHashSet<>();
+		Set<TagKey<?>> unresolvedTags = new LinkedHashSet<>();
+		RegistryOps<JsonElement> ops = RegistryOps.create(JsonOps.INSTANCE, new RegistryOps.RegistryInfoLookup() {
+			@Override
+			public <E> Optional<RegistryOps.RegistryInfo<E>> lookup(
+				ResourceKey<? extends Registry<? extends E>> key) {
+				return server.registryAccess().<E>lookup(key).map(registry -> {
+					RegistryOps.RegistryInfo<E> strict = RegistryOps.RegistryInfo.fromRegistryLookup(registry);
+					return new RegistryOps.RegistryInfo<>(strict.owner(),
+						new Lenient<>(strict.getter(), strict.owner(), unresolved, unresolvedTags),
+						strict.elementsLifecycle());
+				});
+			}
+		});
+		String error = kind.codec().parse(ops, json).error().map(e -> e.message()).orElse(null);
+		return new Verdict(error, Set.copyOf(unresolved), Set.copyOf(unresolvedTags));
+	}
+
+	/** The pack file that would define {@code key}. */
+	private static Identifier fileFor(ResourceKey<?> key) {
+		String dir = Registries.elementsDirPath(ResourceKey.createRegistryKey(key.registry()));
+		return Identifier.fromNamespaceAndPath(
+			key.identifier().getNamespace(), dir + "/" + key.identifier().getPath() + ".json");
+	}
+
+	/** The pack file that would define {@code tag}. */
+	private static Identifier fileFor(TagKey<?> tag) {
+		return Identifier.fromNamespaceAndPath(tag.location().getNamespace(),
+			Registries.tagsDirPath(tag.registry()) + "/" + tag.location().getPath() + ".json");
+	}
+
+	private static String describe(ResourceKey<?> key) {
+		return key.registry().getPath() + " " + key.identifier();
+	}
+
+	private static String describe(TagKey<?> tag) {
+		return tag.registry().identifier().getPath() + " tag #" + tag.location();
+	}
+
+	/**
+	 * The server's entries and tags, plus a stand-in for any id or tag it
+	 * lacks, which is noted so the pack can be checked for it afterwards. A
+	 * stand-in tag is empty; the codec only needs it to exist.
+	 */
+	private record Lenient<T>(
+		HolderGetter<T> strict, HolderOwner<T> owner, Set<ResourceKey<?>> unresolved,
+		Set<TagKey<?>> unresolvedTags) implements HolderGetter<T> {
+
+		@Override
+		public Optional<Holder.Reference<T>> get(ResourceKey<T> key) {
+			Optional<Holder.Reference<T>> found = strict.get(key);
+			if (found.isPresent()) {
+				return found;
+			}
+			synchronized (unresolved) {
+				unresolved.add(key);
+			}
+			return Optional.of(Holder.Reference.createStandAlone(owner, key));
+		}
+
+		@Override
+		public Optional<HolderSet.Named<T>> get(TagKey<T> tag) {
+			Optional<HolderSet.Named<T>> found = strict.get(tag);
+			if (found.isPresent()) {
+				return found;
+			}
+			synchronized (unresolvedTags) {
+				unresolvedTags.add(tag);
+			}
+			return Optional.of(HolderSet.emptyNamed(owner, tag));
+		}
+	}
+
+	/** The file types validated, by directory. */
+	private enum Kind {
+		CONFIGURED_FEATURE(Registries.CONFIGURED_FEATURE, ConfiguredFeature.DIRECT_CODEC),
+		PLACED_FEATURE(Registries.PLACED_FEATURE, PlacedFeature.DIRECT_CODEC);
+
+		private final String dir;
+		private final Codec<?> codec;
+
+		Kind(ResourceKey<? extends Registry<?>> registry, Codec<?> codec) {
+			this.dir = Registries.elementsDirPath(registry) + "/";
+			this.codec = codec;
+		}
+
+		Codec<?> codec() {
+			return codec;
+		}
+
+		static Kind of(Identifier file) {
+			for (Kind kind : values()) {
+				if (file.getPath().startsWith(kind.dir) && file.getPath().endsWith(".json")) {
+					return kind;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * What parsing one file found.
+	 *
+	 * @param error          the codec's complaint, or null if it parsed
+	 * @param unresolved     references the game does not define, which the
+	 *                       pack has to
+	 * @param unresolvedTags tags the game does not define, likewise
+	 */
+	private record Verdict(String error, Set<ResourceKey<?>> unresolved, Set<TagKey<?>> unresolvedTags) {
+	}
+
+	/** One thing wrong with one file. */
+	public record Problem(Identifier file, String error) {
+	}
+
+	/**
+	 * @param checked how many feature files were validated
+	 * @param cached  how many of those were already known by content hash
+	 */
+	public record Report(int checked, int cached, List<Problem> problems) {
+	}
+}
@@ -0,0 +1,229 @@
+package savage.tree_engine.datapack;
+
+import com.google.gson.JsonElement;
+import com.mojang.serialization.JsonOps;
+import net.minecraft.core.Registry;
+import net.minecraft.core.RegistryAccess;
+import net.minecraft.resources.RegistryDataLoader;
+import net.minecraft.resources.RegistryOps;
+import net.minecraft.resources.ResourceKey;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Which worldgen registries refer to which, in one compiled registry set.
+ *
+ * Found by encoding every element with registry ops that record each registry
+ * they are asked about. A codec asks about a registry exactly when the value
+ * it is writing holds a reference into it - that is how it decides whether the
+ * reference can be written as an id - so what gets recorded is the set of
+ * references these elements really make, not what their types could make in
+ * principle. That is the right question for {@link RegistrySet#recompile}: a
+ * reused registry only goes stale if something in it points at a registry
+ * that was replaced.
+ *
+ * The same graph is what lets {@link RegistrySet} decode independent
+ * registries side by side; see {@link #loadOrder}.
+ *
+ * <p>Computed once per registry set and remembered, weakly, for as long as
+ * the set is alive.
+ */
+final class RegistryDependencies {
+	private static final Map<RegistryAccess, RegistryDependencies> CACHE =
+		Collections.synchronizedMap(new WeakHashMap<>());
+
+	/** Registry to the other registries its elements reference. */
+	private final Map<ResourceKey<? extends Registry<?>>, Set<ResourceKey<? extends Registry<?>>>> references;
+	/** Registry to the registries whose elements reference it. */
+	private final Map<ResourceKey<? extends Registry<?>>, Set<ResourceKey<? extends Registry<?>>>> referencedBy =
+		new HashMap<>();
+
+	private RegistryDependencies(
+		Map<ResourceKey<? extends Registry<?>>, Set<ResourceKey<? extends Registry<?>>>> references) {
+		this.references = references;
+		references.forEach((from, targets) -> {
+			for (ResourceKey<? extends Registry<?>> target : targets) {
+				referencedBy.computeIfAbsent(target, k -> new HashSet<>()).add(from);
+			}
+		});
+	}
+
+	static RegistryDependencies of(RegistryAccess.Frozen registries) {
+		return of(registries, null);
+	}
+
+	/**
+	 * The graph of {@code registries}, taking a registry's references from
+	 * {@code fallback} - added to whatever was seen - where its own elements
+	 * cannot all be encoded, rather than assuming it refers to everything.
+	 *
+	 * <p>That is the usual state of a session, not a broken one. A registry it
+	 * shares with the server points into the server's registries, and where
+	 * the session decoded its own copy of one of those the element no longer
+	 * encodes against the session's set; the server's graph is exactly what
+	 * such a registry refers to.
+	 */
+	static RegistryDependencies of(RegistryAccess.Frozen registries, RegistryDependencies fallback) {
+		RegistryDependencies cached = CACHE.get(registries);
+		if (cached != null) {
+			return cached;
+		}
+		Map<ResourceKey<? extends Registry<?>>, Set<ResourceKey<? extends Registry<?>>>> references =
+			new HashMap<>();
+		for (RegistryDataLoader.RegistryData<?> data : RegistryDataLoader.WORLDGEN_REGISTRIES) {
+			Set<ResourceKey<? extends Registry<?>>> targets = references(registries, data, fallback);
+			targets.remove(data.key());
+			references.put(data.key(), targets);
+		}
+		RegistryDependencies built = new RegistryDependencies(references);
+		CACHE.put(registries, built);
+		return built;
+	}
+
+	/** {@code roots} and every registry that refers to them, transitively. */
+	Set<ResourceKey<? extends Registry<?>>> withDependents(Set<ResourceKey<? extends Registry<?>>> roots) {
+		return withDependents(roots, null);
+	}
+
+	/**
+	 * {@code roots} and every registry in {@code within} that refers to them,
+	 * transitively through {@code within} only; null means every registry.
+	 */
+	Set<ResourceKey<? extends Registry<?>>> withDependents(
+		Set<ResourceKey<? extends Registry<?>>> roots, Set<ResourceKey<? extends Registry<?>>> within) {
+
+		Set<ResourceKey<? extends Registry<?>>> out = new HashSet<>(roots);
+		Deque<ResourceKey<? extends Registry<?>>> pending = new ArrayDeque<>(roots);
+		while (!pending.isEmpty()) {
+			for (ResourceKey<? extends Registry<?>> dependent
+				: referencedBy.getOrDefault(pending.pop(), Set.of())) {
+				if ((within == null || within.contains(dependent)) && out.add(dependent)) {
+					pending.push(dependent);
+				}
+			}
+		}
+		return out;
+	}
+
+	/** The other registries {@code key}'s elements refer to. */
+	Set<ResourceKey<? extends Registry<?>>> references(ResourceKey<? extends Registry<?>> key) {
+		return references.getOrDefault(key, Set.of());
+	}
+
+	/**
+	 * {@code subset} split into groups that can each be loaded on their own,
+	 * in an order where every group comes after the ones it refers to.
+	 *
+	 * Registries that refer to each other, directly or around a cycle -
+	 * configured and placed features do - land in the same group, since
+	 * neither can be decoded before the other exists. Everything else is a
+	 * group of one. Within a group, and between groups with no order forced
+	 * on them, the loader's own order is kept, so the result is stable.
+	 */
+	List<List<ResourceKey<? extends Registry<?>>>> loadOrder(Set<ResourceKey<? extends Registry<?>>> subset) {
+		// Tarjan's algorithm. It completes a component only after every
+		// component reachable from it, and edges point at what a registry
+		// refers to, so components come out dependencies first.
+		Tarjan tarjan = new Tarjan(subset);
+		for (RegistryDataLoader.RegistryData<?> data : RegistryDataLoader.WORLDGEN_REGISTRIES) {
+			if (subset.contains(data.key()) && !tarjan.index.containsKey(data.key())) {
+				tarjan.visit(data.key());
+			}
+		}
+		return tarjan.groups;
+	}
+
+	private final class Tarjan {
+		final Set<ResourceKey<? extends Registry<?>>> subset;
+		final Map<ResourceKey<? extends Registry<?>>, Integer> index = new HashMap<>();
+		final Map<ResourceKey<? extends Registry<?>>, Integer> lowLink = new HashMap<>();
+		final Deque<ResourceKey<? extends Registry<?>>> stack = new ArrayDeque<>();
+		final Set<ResourceKey<? extends Registry<?>>> onStack = new HashSet<>();
+		final List<List<ResourceKey<? extends Registry<?>>>> groups = new ArrayList<>();
+
+		Tarjan(Set<ResourceKey<? extends Registry<?>>> subset) {
+			this.subset = subset;
+		}
+
+		void visit(ResourceKey<? extends Registry<?>> key) {
+			index.put(key, index.size());
+			lowLink.put(key, index.get(key));
+			stack.push(key);
+			onStack.add(key);
+
+			for (ResourceKey<? extends Registry<?>> target : references(key)) {
+				if (!subset.contains(target)) {
+					continue;
+				}
+				if (!index.containsKey(target)) {
+					visit(target);
+					lowLink.put(key, Math.min(lowLink.get(key), lowLink.get(target)));
+				} else if (onStack.contains(target)) {
+					lowLink.put(key, Math.min(lowLink.get(key), index.get(target)));
+				}
+			}
+
+			if (lowLink.get(key).equals(index.get(key))) {
+				Set<ResourceKey<? extends Registry<?>>> members = new HashSet<>();
+				ResourceKey<? extends Registry<?>> member;
+				do {
+					member = stack.pop();
+					onStack.remove(member);
+					members.add(member);
+				} while (!member.equals(key));
+
+				List<ResourceKey<? extends Registry<?>>> group = new ArrayList<>();
+				for (RegistryDataLoader.RegistryData<?> data : RegistryDataLoader.WORLDGEN_REGISTRIES) {
+					if (members.contains(data.key())) {
+						group.add(data.key());
+					}
+				}
+				groups.add(group);
+			}
+		}
+	}
+
+	/** Every registry the elements of {@code data}'s registry refer to. */
+	private static <T> Set<ResourceKey<? extends Registry<?>>> references(
+		RegistryAccess registries, RegistryDataLoader.RegistryData<T> data,
+		RegistryDependencies fallback) {
+
+		Set<ResourceKey<? extends Registry<?>>> seen = new HashSet<>();
+		RegistryOps<JsonElement> ops = RegistryOps.create(JsonOps.INSTANCE, new RegistryOps.RegistryInfoLookup() {
+			@Override
+			public <E> Optional<RegistryOps.RegistryInfo<E>> lookup(
+				ResourceKey<? extends Registry<? extends E>> key) {
+				seen.add(key);
+				return registries.<E>lookup(key).map(RegistryOps.RegistryInfo::fromRegistryLookup);
+			}
+		});
+		boolean complete = registries.lookup(data.key()).map(registry -> {
+			boolean all = true;
+			for (T element : registry) {
+				// Only the lookups matter, but an element that failed to encode
+				// stopped asking partway, so its references are not all known.
+				all &= data.elementCodec().encodeStart(ops, element).isSuccess();
+			}
+			return all;
+		}).orElse(true);
+		if (!complete && fallback != null) {
+			seen.addAll(fallback.references(data.key()));
+		} else if (!complete) {
+			// Unknown references are assumed to be references to everything.
+			for (RegistryDataLoader.RegistryData<?> other : RegistryDataLoader.WORLDGEN_REGISTRIES) {
+				seen.add(other.key());
+			}
+		}
+		return seen;
+	}
+}
@@ -2,19 +2,36 @@ package savage.tree_engine.datapack;
 
 import net.minecraft.ReportedException;
 import net.minecraft.core.HolderLookup;
+import net.minecraft.core.Registry;
 import net.minecraft.core.RegistryAccess;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.resources.Identifier;
 import net.minecraft.resources.RegistryDataLoader;
+import net.minecraft.resources.ResourceKey;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.RegistryLayer;
 import net.minecraft.server.packs.PackResources;
 import net.minecraft.server.packs.PackType;
 import net.minecraft.server.packs.resources.CloseableResourceManager;
 import net.minecraft.server.packs.resources.MultiPackResourceManager;
+import net.minecraft.server.packs.resources.ResourceManager;
 import savage.tree_engine.api.ApiException;
+import savage.tree_engine.api.ApiServer;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
 
 /**
  * Compiles a datapack into a usable {@link RegistryAccess} without touching
@@ -22,18 +39,24 @@ import java.util.concurrent.Executor;
  * place in the backend that knows how registry loading works.
  */
 public final class RegistrySet {
+	private static final Map<MinecraftServer, RegistryAccess.Frozen> VANILLA =
+		Collections.synchronizedMap(new WeakHashMap<>());
+
+	private static final Map<ResourceManager, List<PackResources>> BASE_PACKS =
+		Collections.synchronizedMap(new WeakHashMap<>());
+
 	private RegistrySet() {
 	}
 
 	/**
 	 * Builds a frozen registry set containing vanilla's data with the given
-	 * pack layered on top.
+	 * packs layered on top, the last one uppermost.
 	 *
 	 * Two details here are load-bearing and were established by running them,
 	 * so do not "simplify" either one:
 	 *
 	 * <ol>
-	 *   <li>The pack is <em>appended to</em> the server's existing packs, not
+	 *   <li>The packs are <em>appended to</em> the server's existing packs, not
 	 *       used alone. {@code WORLDGEN_REGISTRIES} loads every worldgen
 	 *       registry in one pass, and several of them ({@code pig_variant},
 	 *       {@code wolf_variant}, the sound variants) fail a non-empty
@@ -44,12 +67,11 @@ public final class RegistrySet {
 	 *       registries being loaded.</li>
 	 * </ol>
 	 */
-	public static RegistryAccess.Frozen compile(
-		MinecraftServer server, PackResources pack, Executor executor) {
+	public static Compiled compile(
+		MinecraftServer server, List<PackResources> layers, Executor executor) {
 
-		List<PackResources> packs =
-			new ArrayList<>(server.getResourceManager().listPacks().toList());
-		packs.add(pack);
+		List<PackResources> packs = new ArrayList<>(basePacks(server));
+		packs.addAll(layers);
 
 		try (CloseableResourceManager resources =
 				 new MultiPackResourceManager(PackType.SERVER_DATA, packs)) {
@@ -59,14 +81,347 @@ public final class RegistrySet {
 				.listRegistries()
 				.toList();
 
-			return RegistryDataLoader.load(
+			// The pack's references are not known before it is decoded, so
+			// the groups follow vanilla's. A pack referring somewhere vanilla
+			// never does fails that way and is loaded in one piece instead,
+			// which is also what reports a genuinely broken pack's error.
+			Map<String, Long> registryMs = new LinkedHashMap<>();
+			try {
+				Map<ResourceKey<? extends Registry<?>>, Registry<?>> loaded = loadGrouped(
+					server, resources, base, RegistryDataLoader.WORLDGEN_REGISTRIES,
+					RegistryDependencies.of(vanilla(server)), executor, registryMs);
+				return new Compiled(combine(loaded, null), registryMs);
+			} catch (Exception e) {
+				ApiServer.LOGGER.debug("Grouped compile failed; loading all registries at once", e);
+			}
+			long start = System.nanoTime();
+			RegistryAccess.Frozen registries = RegistryDataLoader.load(
 				resources, base, RegistryDataLoader.WORLDGEN_REGISTRIES, executor).join();
+			return new Compiled(registries, Map.of("all", (System.nanoTime() - start) / 1_000_000L));
 
 		} catch (Exception e) {
 			throw ApiException.badRequest("Datapack failed to load", describe(e));
 		}
 	}
 
+	/**
+	 * Compiles {@code layers} as a change to the server's own worldgen
+	 * registries rather than from nothing.
+	 *
+	 * The server decoded exactly the same vanilla data at startup, so a
+	 * registry the pack does not reach - no file of its own, no reference
+	 * into one that has - would decode to an identical copy. Instead the
+	 * session is handed the server's object itself. A pack of a few tree
+	 * features therefore owns its feature registries and whatever refers to
+	 * them, and shares every variant, noise and structure registry with the
+	 * server and with every other session; see {@link #recompile}, which
+	 * this is with the server as the parent.
+	 *
+	 * @param files every resource id in {@code layers}
+	 */
+	public static Compiled compileOverVanilla(
+		MinecraftServer server, List<PackResources> layers, Set<Identifier> files, Executor executor) {
+		return recompile(server, vanilla(server), layers, files, executor);
+	}
+
+	/**
+	 * The server's packs, each wrapped to keep the files compiles read from
+	 * it; see {@link CachedPackResources}. Keyed by the server's resource
+	 * manager, which a {@code /reload} replaces, so a reload is picked up.
+	 */
+	private static List<PackResources> basePacks(MinecraftServer server) {
+		return BASE_PACKS.computeIfAbsent(server.getResourceManager(), resources -> resources.listPacks()
+			.<PackResources>map(CachedPackResources::new)
+			.toList());
+	}
+
+	/**
+	 * The server's worldgen registries as a registry set of their own, the
+	 * same shape {@link #compile} returns. Built once per server, so that
+	 * what is derived from it - {@link RegistryDependencies} above all - is
+	 * too.
+	 */
+	static RegistryAccess.Frozen vanilla(MinecraftServer server) {
+		return VANILLA.computeIfAbsent(server, s -> combine(Map.of(), s.registryAccess()));
+	}
+
+	/**
+	 * Compiles {@code layers} as a successor of {@code parent}, re-decoding only
+	 * the registries the change can reach and taking every other one from the
+	 * parent as it is.
+	 *
+	 * <p>A registry has to be re-decoded if one of its own files changed, or
+	 * if it holds references into a registry where an entry it could be
+	 * pointing at changed - its elements would otherwise keep pointing at the
+	 * parent's version. That second rule is applied transitively using the
+	 * references the parent's elements actually make; see
+	 * {@link RegistryDependencies}.
+	 *
+	 * <p>How far that second rule reaches depends on whose entry changed. A
+	 * file that replaces or removes an entry the server has, or any tag file,
+	 * can affect anything referring to its registry, so every dependent is
+	 * re-decoded. A file for an id the server does not have - a new one, or an
+	 * edit or removal of one a pack added - can only be referred to by
+	 * registries some compile of a pack decoded; the server's own cannot
+	 * name it. So only the dependents {@code parent} owns itself are
+	 * re-decoded, and the ones it shares with the server stay as they are,
+	 * still pointing at the server's entries, which are unchanged. This is
+	 * what keeps the usual session, a few new trees, to one registry: without
+	 * it a new configured feature would drag placed features, biomes,
+	 * structures and everything that refers to those back through the decoder
+	 * with it.
+	 *
+	 * <p>"New" is decided against the server rather than {@code parent} on
+	 * purpose. Against the parent, a PATCH to a tree the pack added counted as
+	 * replacing an entry and cascaded through every registry, and a new id
+	 * skipped even the pack's own dependents, leaving them pointing into a
+	 * registry the session no longer has. The registries that are re-decoded
+	 * are loaded exactly as {@link #compile} loads everything, vanilla data
+	 * included, just with the reused ones supplied as base lookups instead of
+	 * being loaded again.
+	 *
+	 * <p>Anything going wrong here falls back to a full compile, so the worst
+	 * case is the cost of not having tried, and a genuinely broken pack still
+	 * reports the same error it always did.
+	 *
+	 * @param changed resource ids added, removed or edited since the parent
+	 */
+	public static Compiled recompile(
+		MinecraftServer server, RegistryAccess.Frozen parent, List<PackResources> layers,
+		Set<Identifier> changed, Executor executor) {
+
+		RegistryAccess.Frozen vanilla = vanilla(server);
+		Set<ResourceKey<? extends Registry<?>>> touched = new HashSet<>();
+		Set<ResourceKey<? extends Registry<?>>> replaced = new HashSet<>();
+		for (Identifier id : changed) {
+			ResourceKey<? extends Registry<?>> owner = owningRegistry(id);
+			if (owner != null) {
+				touched.add(owner);
+				if (!isNewElement(vanilla, owner, id)) {
+					replaced.add(owner);
+				}
+			}
+		}
+		// Nothing worldgen reads changed, so compiling would rebuild the parent.
+		if (touched.isEmpty()) {
+			return new Compiled(parent, Map.of());
+		}
+		RegistryDependencies dependencies =
+			RegistryDependencies.of(parent, RegistryDependencies.of(vanilla));
+		Set<ResourceKey<? extends Registry<?>>> owned = new HashSet<>();
+		for (RegistryDataLoader.RegistryData<?> data : RegistryDataLoader.WORLDGEN_REGISTRIES) {
+			if (parent.lookup(data.key()).orElse(null) != vanilla.lookup(data.key()).orElse(null)) {
+				owned.add(data.key());
+			}
+		}
+		Set<ResourceKey<? extends Registry<?>>> reload = new HashSet<>(touched);
+		reload.addAll(dependencies.withDependents(replaced));
+		reload.addAll(dependencies.withDependents(touched, owned));
+
+		List<RegistryDataLoader.RegistryData<?>> subset = new ArrayList<>();
+		for (RegistryDataLoader.RegistryData<?> data : RegistryDataLoader.WORLDGEN_REGISTRIES) {
+			if (reload.contains(data.key())) {
+				subset.add(data);
+			}
+		}
+
+		List<PackResources> packs = new ArrayList<>(basePacks(server));
+		packs.addAll(layers);
+
+		try (CloseableResourceManager resources =
+				 new MultiPackResourceManager(PackType.SERVER_DATA, packs)) {
+
+			List<HolderLookup.RegistryLookup<?>> base = new ArrayList<>(server.registries()
+				.getAccessForLoading(RegistryLayer.WORLDGEN)
+				.listRegistries()
+				.toList());
+			// Only its worldgen registries: the parent may be the server's
+			// own registry access, whose other layers are in base already.
+			for (RegistryDataLoader.RegistryData<?> data : RegistryDataLoader.WORLDGEN_REGISTRIES) {
+				if (!reload.contains(data.key())) {
+					parent.lookup(data.key()).ifPresent(base::add);
+				}
+			}
+
+			Map<String, Long> registryMs = new LinkedHashMap<>();
+			Map<ResourceKey<? extends Registry<?>>, Registry<?>> loaded =
+				loadGrouped(server, resources, base, subset, dependencies, executor, registryMs);
+
+			ApiServer.LOGGER.info("Recompiled {} of {} worldgen registries ({} changed files)",
+				subset.size(), RegistryDataLoader.WORLDGEN_REGISTRIES.size(), changed.size());
+			return new Compiled(combine(loaded, parent), registryMs);
+
+		} catch (Exception e) {
+			ApiServer.LOGGER.debug("Incremental compile failed; compiling in full", e);
+			return compile(server, layers, executor);
+		}
+	}
+
+	/**
+	 * Loads {@code subset} a group at a time, each group as soon as the ones
+	 * it refers to are done, so registries that do not depend on each other
+	 * decode side by side on {@code executor}.
+	 *
+	 * <p>{@link RegistryDataLoader#load} spreads one call's work over the
+	 * executor too, but only within the order it imposes itself; splitting
+	 * along the reference graph is what lets, say, the noise settings decode
+	 * while the features are still going. Each group is loaded exactly as a
+	 * whole compile would load it, with the groups it refers to added to the
+	 * base lookups - the same mechanism {@link #recompile} reuses a parent's
+	 * registries by.
+	 *
+	 * @param registryMs filled with each group's wall time, in load order
+	 */
+	private static Map<ResourceKey<? extends Registry<?>>, Registry<?>> loadGrouped(
+		MinecraftServer server, ResourceManager resources, List<HolderLookup.RegistryLookup<?>> base,
+		List<RegistryDataLoader.RegistryData<?>> subset, RegistryDependencies dependencies,
+		Executor executor, Map<String, Long> registryMs) {
+
+		Map<ResourceKey<? extends Registry<?>>, RegistryDataLoader.RegistryData<?>> byKey =
+			new LinkedHashMap<>();
+		for (RegistryDataLoader.RegistryData<?> data : subset) {
+			byKey.put(data.key(), data);
+		}
+		List<List<ResourceKey<? extends Registry<?>>>> groups = dependencies.loadOrder(byKey.keySet());
+		// Unchanged features are taken from earlier compiles, not decoded.
+		FeatureCache.Scope features = new FeatureCache.Scope(serverRegistries(server));
+
+		Map<ResourceKey<? extends Registry<?>>, Registry<?>> loaded = new ConcurrentHashMap<>();
+		Map<String, Long> timings = new ConcurrentHashMap<>();
+		// Per registry: the future of the group loading it, and every other
+		// registry in the subset it needs in place first, transitively.
+		Map<ResourceKey<? extends Registry<?>>, CompletableFuture<Void>> done = new HashMap<>();
+		Map<ResourceKey<? extends Registry<?>>, Set<ResourceKey<? extends Registry<?>>>> upstream =
+			new HashMap<>();
+
+		for (List<ResourceKey<? extends Registry<?>>> group : groups) {
+			Set<ResourceKey<? extends Registry<?>>> needs = new HashSet<>();
+			for (ResourceKey<? extends Registry<?>> member : group) {
+				for (ResourceKey<? extends Registry<?>> target : dependencies.references(member)) {
+					if (byKey.containsKey(target) && !group.contains(target)) {
+						needs.add(target);
+						needs.addAll(upstream.get(target));
+					}
+				}
+			}
+			List<RegistryDataLoader.RegistryData<?>> data = group.stream()
+				.<RegistryDataLoader.RegistryData<?>>map(key -> FeatureCache.wrap(byKey.get(key), features))
+				.toList();
+			String name = groupName(group);
+
+			CompletableFuture<Void> future = CompletableFuture
+				.allOf(needs.stream().map(done::get).distinct().toArray(CompletableFuture[]::new))
+				.thenComposeAsync(ignored -> {
+					List<HolderLookup.RegistryLookup<?>> lookups = new ArrayList<>(base);
+					for (ResourceKey<? extends Registry<?>> need : needs) {
+						lookups.add(loaded.get(need));
+					}
+					long start = System.nanoTime();
+					return RegistryDataLoader.load(resources, lookups, data, executor)
+						.thenAccept(frozen -> {
+							timings.put(name, (System.nanoTime() - start) / 1_000_000L);
+							frozen.registries().forEach(entry -> loaded.put(entry.key(), entry.value()));
+						});
+				}, executor);
+
+			for (ResourceKey<? extends Registry<?>> member : group) {
+				done.put(member, future);
+				upstream.put(member, needs);
+			}
+		}
+
+		CompletableFuture.allOf(done.values().toArray(CompletableFuture[]::new)).join();
+		if (features.hits() + features.misses() > 0) {
+			ApiServer.LOGGER.debug("Features: {} reused, {} decoded", features.hits(), features.misses());
+		}
+		for (List<ResourceKey<? extends Registry<?>>> group : groups) {
+			registryMs.put(groupName(group), timings.get(groupName(group)));
+		}
+		return loaded;
+	}
+
+	/**
+	 * Every registry the server itself holds, static ones included, by
+	 * identity. What a compile resolves into these it shares with the server
+	 * and every other compile; anything else is its own.
+	 */
+	private static Set<Object> serverRegistries(MinecraftServer server) {
+		Set<Object> registries = Collections.newSetFromMap(new IdentityHashMap<>());
+		server.registryAccess().registries().forEach(entry -> registries.add(entry.value()));
+		return registries;
+	}
+
+	/**
+	 * One registry set from {@code loaded}, with anything not in it taken
+	 * from {@code rest}. Reassembled in the loader's own order, so the result
+	 * is indistinguishable from a single load's.
+	 */
+	private static RegistryAccess.Frozen combine(
+		Map<ResourceKey<? extends Registry<?>>, Registry<?>> loaded, RegistryAccess.Frozen rest) {
+
+		List<Registry<?>> combined = new ArrayList<>();
+		for (RegistryDataLoader.RegistryData<?> data : RegistryDataLoader.WORLDGEN_REGISTRIES) {
+			Registry<?> registry = loaded.get(data.key());
+			if (registry != null) {
+				combined.add(registry);
+			} else if (rest != null) {
+				rest.lookup(data.key()).ifPresent(combined::add);
+			}
+		}
+		return new RegistryAccess.ImmutableRegistryAccess(combined).freeze();
+	}
+
+	/** Registry ids without the namespace, joined when a cycle forced them together. */
+	private static String groupName(List<ResourceKey<? extends Registry<?>>> group) {
+		return group.stream()
+			.map(key -> key.identifier().getPath())
+			.collect(Collectors.joining("+"));
+	}
+
+	/**
+	 * A compiled registry set, and how long each part of it took.
+	 *
+	 * @param registryMs registry to decode wall time, in load order; empty
+	 *                   when nothing needed decoding
+	 */
+	public record Compiled(RegistryAccess.Frozen registries, Map<String, Long> registryMs) {
+	}
+
+	/**
+	 * The worldgen registry a datapack resource belongs to, as an element or
+	 * as a tag, or null if worldgen loading never reads it.
+	 */
+	static ResourceKey<? extends Registry<?>> owningRegistry(Identifier id) {
+		String path = id.getPath();
+		for (RegistryDataLoader.RegistryData<?> data : RegistryDataLoader.WORLDGEN_REGISTRIES) {
+			if (path.startsWith(Registries.elementsDirPath(data.key()) + "/")
+				|| path.startsWith(Registries.tagsDirPath(data.key()) + "/")) {
+				return data.key();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Whether {@code file}, in {@code registry}'s element directory, is an
+	 * entry {@code existing} does not have. Tags are never new in this sense:
+	 * a tag file extends whatever tag of that name exists.
+	 */
+	private static boolean isNewElement(
+		RegistryAccess existing, ResourceKey<? extends Registry<?>> registry, Identifier file) {
+
+		String dir = Registries.elementsDirPath(registry) + "/";
+		String path = file.getPath();
+		if (!path.startsWith(dir) || !path.endsWith(".json")) {
+			return false;
+		}
+		Identifier element = Identifier.fromNamespaceAndPath(
+			file.getNamespace(), path.substring(dir.length(), path.length() - ".json".length()));
+		return existing.lookup(registry)
+			.map(entries -> !entries.containsKey(element))
+			.orElse(false);
+	}
+
 	/**
 	 * Registry load failures arrive wrapped in a CrashReport whose stack
 	 * trace says nothing useful; the per-element codec errors live in the
@@ -8,9 +8,21 @@ import net.minecraft.core.RegistryAccess;
  * Previews reference a session by id so the editor does not have to re-upload
  * the whole datapack on every keystroke. Nothing here is persisted - when the
  * session is evicted the registries become garbage.
+ *
+ * @param layers the packs it was compiled from, kept so a later edit can be
+ *               sent as a patch against this session rather than in full
  */
 public record Session(
 	String id,
 	RegistryAccess.Frozen registries,
-	int fileCount) {
+	PackLayers layers) {
+
+	/** The layer an edit applies to; for a flat upload, the whole pack. */
+	public PackContents contents() {
+		return layers.top();
+	}
+
+	public int fileCount() {
+		return layers.fileCount();
+	}
 }
@@ -1,60 +1,233 @@
 package savage.tree_engine.datapack;
 
 import savage.tree_engine.api.ApiException;
+import savage.tree_engine.api.ApiServer;
+import savage.tree_engine.api.MemoryBudget;
 
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
- * Holds compiled datapacks in memory, bounded by count.
+ * Holds compiled datapacks in memory, bounded by their estimated size, and
+ * remembers the source of ones it had to let go.
  *
- * A compiled registry set is large, so this deliberately keeps very few.
- * Eviction is not a correctness concern: a client whose session has been
- * evicted simply re-uploads the datapack and gets an identical id back,
- * because ids are content fingerprints.
+ * A compiled registry set is large, and how large varies enormously: one for
+ * a three-file pack and one for a ten-thousand-file pack are nothing alike. A
+ * bound on count alone was therefore either far too loose or far too tight,
+ * so sessions are weighed by {@link #estimatedBytes} and the least recently
+ * used go first once the total passes the budget. The old count bound is
+ * still applied on top, as a ceiling.
+ *
+ * <p>Eviction is two-tier. Losing a session's registries only drops it to a
+ * dormant tier that keeps its {@link PackLayers} - a small fraction of the
+ * compiled size, and mostly arrays the {@link BlobStore} holds anyway. Asking
+ * for a dormant session recompiles it in place, so a client only sees "re-send
+ * the datapack" once the source itself has aged out.
+ *
+ * <p>Compiling goes through here too, so that it happens once per
+ * fingerprint however many callers want the same pack at the same moment -
+ * two tabs, or a client retrying a request that is merely slow. The first
+ * caller compiles; the rest wait for its result rather than starting the
+ * most expensive thing the backend does again in parallel. Only that first
+ * caller reserves the compile's memory, so callers who join it hold none,
+ * and a dormant session recompiled by a preview is counted like any other.
  *
  * There is deliberately no time-to-live. This backend is a child process of
  * the editor and dies with it, so a session only ever has one user, and that
  * user expects the app to still work after they come back from lunch. A clock
- * bound could only ever evict a session someone was still using; the count
+ * bound could only ever evict a session someone was still using; the size
  * bound is what actually protects memory, and it evicts the least recently
  * used session rather than whichever one happens to be oldest.
  */
 public final class SessionCache {
+	/**
+	 * Rough retained cost of one decoded registry element. Deliberately an
+	 * order-of-magnitude figure: a biome holds long feature lists, a noise
+	 * router a tree of density functions, and both are far larger than their
+	 * JSON. It only has to keep the total in the right range.
+	 */
+	private static final long BYTES_PER_ELEMENT = 16 * 1024;
+
+	/** Decoded objects outweigh the JSON they came from several times over. */
+	private static final long DECODED_PER_SOURCE_BYTE = 8;
+
+	/** Sources are cheap to keep, but a client could still send many. */
+	private static final long MAX_DORMANT_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * A compile holds each file's JSON tree and what was decoded from it at
+	 * once, and decoded objects alone outweigh their JSON several times over.
+	 */
+	private static final long COMPILE_BYTES_PER_SOURCE_BYTE = 16;
+	/** The registry copies and lookups any compile makes, however small the pack. */
+	private static final long COMPILE_BASE_BYTES = 16L * 1024 * 1024;
+
 	private final int maxSessions;
-	private final LinkedHashMap<String, Session> sessions;
+	private final long maxBytes;
+	private final SessionCompiler compiler;
+	private final MemoryBudget memory;
+
+	// Access-ordered, so the least recently *used* session is evicted - not
+	// merely the oldest one.
+	private final LinkedHashMap<String, Entry> sessions = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<String, PackLayers> dormant = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<String, CompletableFuture<SessionCompiler.Result>> compiling = new HashMap<>();
+	private long heldBytes;
+	private long dormantBytes;
 
-	public SessionCache(int maxSessions) {
+	/**
+	 * @param maxSessions ceiling on compiled sessions, whatever their size
+	 * @param maxBytes    budget for compiled sessions by estimated size
+	 * @param memory      what a compile reserves its working set against
+	 */
+	public SessionCache(int maxSessions, long maxBytes, SessionCompiler compiler, MemoryBudget memory) {
 		this.maxSessions = Math.max(1, maxSessions);
-		// Access-ordered, so the least recently *used* session is evicted -
-		// not merely the oldest one.
-		this.sessions = new LinkedHashMap<>(16, 0.75f, true) {
-			@Override
-			protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
-				return size() > SessionCache.this.maxSessions;
-			}
-		};
+		this.maxBytes = Math.max(0, maxBytes);
+		this.compiler = compiler;
+		this.memory = memory;
 	}
 
 	public synchronized void put(Session session) {
-		sessions.put(session.id(), session);
+		dormantBytes -= sourceBytes(dormant.remove(session.id()));
+		Entry entry = new Entry(session, estimatedBytes(session));
+		Entry replaced = sessions.put(session.id(), entry);
+		if (replaced != null) {
+			heldBytes -= replaced.bytes();
+		}
+		heldBytes += entry.bytes();
+
+		// Never the session just stored: whoever stored it is about to use it.
+		var eldest = sessions.values().iterator();
+		while ((heldBytes > maxBytes || sessions.size() > maxSessions) && sessions.size() > 1) {
+			Entry evicted = eldest.next();
+			eldest.remove();
+			heldBytes -= evicted.bytes();
+			keepDormant(evicted.session());
+		}
 	}
 
 	public synchronized boolean contains(String id) {
 		return get(id) != null;
 	}
 
-	/** Returns the session, or null if it is absent. */
+	/** Returns the compiled session, or null if it is not compiled right now. */
 	public synchronized Session get(String id) {
-		return sessions.get(id);
+		Entry entry = sessions.get(id);
+		return entry != null ? entry.session() : null;
+	}
+
+	/**
+	 * Returns the session, recompiling it from its kept source if only that is
+	 * left, or null if the backend has no trace of it.
+	 *
+	 * <p>The compile happens outside the lock, so one dormant session coming
+	 * back does not stall every other lookup behind it.
+	 */
+	public Session resolve(String id) {
+		PackLayers source;
+		synchronized (this) {
+			Session session = get(id);
+			if (session != null) {
+				return session;
+			}
+			source = dormant.get(id);
+		}
+		if (source == null) {
+			return null;
+		}
+		Outcome outcome = compile(source, null);
+		if (outcome.compiled() != null && !outcome.joined()) {
+			ApiServer.LOGGER.info("Recompiled dormant session {} ({} files) in {}ms",
+				id, outcome.session().fileCount(), outcome.compiled().compileMs());
+		}
+		return outcome.session();
+	}
+
+	/**
+	 * The session for {@code layers}: the one already compiled, the result
+	 * of a compile of the same fingerprint already under way, or failing both
+	 * a new compile on this thread, stored before anyone else is let in.
+	 *
+	 * <p>A failed compile fails every caller that joined it, and is not
+	 * remembered - the next attempt compiles again.
+	 *
+	 * <p>Layers are compiled bottom up: with no parent given, a stack of
+	 * several is compiled on top of the session of all its layers but the
+	 * top one, which is compiled - and kept - first if need be. Editing the
+	 * top layer then only ever recompiles what that layer reaches.
+	 *
+	 * @param parent see {@link SessionCompiler#compile}; ignored when joining,
+	 *               since the same fingerprint compiles to the same session
+	 */
+	public Outcome compile(PackLayers layers, Session parent) {
+		String id = layers.fingerprint();
+		CompletableFuture<SessionCompiler.Result> flight;
+		boolean mine = false;
+		synchronized (this) {
+			Session existing = get(id);
+			if (existing != null) {
+				return new Outcome(existing, null, false);
+			}
+			flight = compiling.get(id);
+			if (flight == null) {
+				flight = new CompletableFuture<>();
+				compiling.put(id, flight);
+				mine = true;
+			}
+		}
+		if (!mine) {
+			SessionCompiler.Result result = join(flight);
+			return new Outcome(result.session(), result, true);
+		}
+
+		try {
+			if (parent == null && layers.below() != null) {
+				parent = compile(layers.below(), null).session();
+			}
+			SessionCompiler.Result result;
+			try (MemoryBudget.Reservation reserved =
+				memory.reserve("compile", compileBytes(layers, parent))) {
+				result = compiler.compile(layers, parent);
+			}
+			// Stored before the flight lands, so a caller arriving in between
+			// finds the session rather than starting another compile.
+			synchronized (this) {
+				put(result.session());
+				compiling.remove(id);
+			}
+			flight.complete(result);
+			return new Outcome(result.session(), result, false);
+		} catch (RuntimeException | Error e) {
+			synchronized (this) {
+				compiling.remove(id);
+			}
+			flight.completeExceptionally(e);
+			throw e;
+		}
+	}
+
+	private static SessionCompiler.Result join(CompletableFuture<SessionCompiler.Result> flight) {
+		try {
+			return flight.join();
+		} catch (CompletionException e) {
+			// The compiling caller's own exception, so joiners report exactly
+			// what it reported.
+			if (e.getCause() instanceof RuntimeException cause) {
+				throw cause;
+			}
+			throw e;
+		}
 	}
 
-	/** Like {@link #get} but reports the failure the client should see. */
-	public synchronized Session require(String id) {
+	/** Like {@link #resolve} but reports the failure the client should see. */
+	public Session require(String id) {
 		if (id == null || id.isBlank()) {
 			throw ApiException.badRequest("Missing sessionId");
 		}
-		Session session = get(id);
+		Session session = resolve(id);
 		if (session == null) {
 			throw ApiException.notFound(
 				"Unknown session: " + id + " - re-send the datapack");
@@ -63,14 +236,94 @@ public final class SessionCache {
 	}
 
 	public synchronized boolean remove(String id) {
-		return sessions.remove(id) != null;
+		Entry entry = sessions.remove(id);
+		if (entry != null) {
+			heldBytes -= entry.bytes();
+		}
+		PackLayers source = dormant.remove(id);
+		dormantBytes -= sourceBytes(source);
+		return entry != null || source != null;
 	}
 
+	/** Compiled sessions. */
 	public synchronized int size() {
 		return sessions.size();
 	}
 
+	/** Sessions kept only as source, recompiled on next use. */
+	public synchronized int dormantSize() {
+		return dormant.size();
+	}
+
+	public synchronized long heldBytes() {
+		return heldBytes;
+	}
+
 	public synchronized void clear() {
 		sessions.clear();
+		dormant.clear();
+		heldBytes = 0;
+		dormantBytes = 0;
+	}
+
+	private void keepDormant(Session session) {
+		long bytes = sourceBytes(session.layers());
+		if (bytes > MAX_DORMANT_BYTES) {
+			return;
+		}
+		dormant.put(session.id(), session.layers());
+		dormantBytes += bytes;
+		var eldest = dormant.values().iterator();
+		while (dormantBytes > MAX_DORMANT_BYTES && eldest.hasNext()) {
+			dormantBytes -= sourceBytes(eldest.next());
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * What holding a compiled session costs, roughly. Registries it shares
+	 * with the server cost nothing extra and are not counted; ones shared
+	 * with another session are counted in both, which errs toward evicting
+	 * early. Of its source only the top layer is counted: the layers below
+	 * were compiled into a session of their own, which is where their
+	 * decoded size is.
+	 */
+	private long estimatedBytes(Session session) {
+		long elements = session.registries().registries()
+			.filter(entry -> !compiler.sharedWithServer(entry.value()))
+			.mapToLong(entry -> entry.value().size())
+			.sum();
+		return elements * BYTES_PER_ELEMENT
+			+ session.contents().files().stream().mapToLong(PackContents.File::length).sum()
+			* DECODED_PER_SOURCE_BYTE;
+	}
+
+	/**
+	 * The most a compile holds at once, worked out before it starts. Only
+	 * what is decoded counts: over a parent only the top layer is, and
+	 * anything shared with the server is not decoded at all.
+	 */
+	private static long compileBytes(PackLayers layers, Session parent) {
+		long source = parent != null
+			? layers.top().files().stream().mapToLong(PackContents.File::length).sum()
+			: layers.sourceBytes();
+		return COMPILE_BASE_BYTES + source * COMPILE_BYTES_PER_SOURCE_BYTE;
+	}
+
+	private static long sourceBytes(PackLayers layers) {
+		return layers != null ? layers.sourceBytes() : 0;
+	}
+
+	/**
+	 * What {@link #compile} did.
+	 *
+	 * @param compiled the compile that produced the session, or null if it
+	 *                 was already held
+	 * @param joined   whether that compile was another caller's
+	 */
+	public record Outcome(Session session, SessionCompiler.Result compiled, boolean joined) {
+	}
+
+	private record Entry(Session session, long bytes) {
 	}
 }
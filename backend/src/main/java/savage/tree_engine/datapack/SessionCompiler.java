@@ -0,0 +1,103 @@
+package savage.tree_engine.datapack;
+
+import net.minecraft.core.Registry;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.packs.PackResources;
+import savage.tree_engine.api.ApiException;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * Turns pack contents into a compiled {@link Session}.
+ *
+ * Split out of the upload route because a session can now be compiled
+ * without anyone uploading anything: {@link SessionCache} recompiles a
+ * session whose registries it evicted but whose source it kept, the moment
+ * someone asks for it again.
+ *
+ * <p>Compiles run on a pool of their own rather than on the API worker that
+ * asked. Decoding is CPU-bound and splits well across registries, and a
+ * separate, bounded pool lets it use several cores without a large compile
+ * taking every request worker with it - or the other way round.
+ */
+public final class SessionCompiler {
+	private final MinecraftServer server;
+	private final ForkJoinPool pool;
+
+	public SessionCompiler(MinecraftServer server, int threads) {
+		this.server = server;
+		this.pool = new ForkJoinPool(Math.max(1, threads), pool -> {
+			ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			t.setName("tree-engine-compile-" + t.getPoolIndex());
+			// Codecs can load classes lazily; they have to come from the mod's
+			// loader, not whatever a fresh pool thread would default to.
+			t.setContextClassLoader(SessionCompiler.class.getClassLoader());
+			return t;
+		}, null, false);
+	}
+
+	/**
+	 * @param parent a session these layers were patched or stacked from,
+	 *               whose registries may be partly reused; null to compile
+	 *               from scratch
+	 */
+	public Result compile(PackLayers layers, Session parent) {
+		String id = layers.fingerprint();
+		List<PackResources> packs = layers.packs();
+
+		// The calling thread only waits; it is already off the server
+		// thread, so the game loop is never blocked either way.
+		long start = System.nanoTime();
+		RegistrySet.Compiled compiled;
+		try {
+			compiled = parent != null
+				? RegistrySet.recompile(
+					server, parent.registries(), packs, layers.differingFrom(parent.layers()), pool)
+				: RegistrySet.compileOverVanilla(server, packs, layers.ids(), pool);
+		} catch (ApiException e) {
+			// The loader names the file that failed but not why. Re-parse it
+			// here to recover the codec's actual complaint.
+			String precise = DatapackDiagnostics.explain(
+				server.registryAccess(), layers.toPayload(), e.detail());
+			if (precise != null) {
+				throw new ApiException(e.status(), e.getMessage(), precise, e);
+			}
+			throw e;
+		}
+		return new Result(
+			new Session(id, compiled.registries(), layers),
+			(System.nanoTime() - start) / 1_000_000L,
+			compiled.registryMs());
+	}
+
+	/**
+	 * Whether {@code registry} is the server's own, shared rather than owned
+	 * by whichever session holds it.
+	 */
+	public boolean sharedWithServer(Registry<?> registry) {
+		return RegistrySet.vanilla(server).lookup(registry.key())
+			.filter(own -> own == registry)
+			.isPresent();
+	}
+
+	/** The compile pool, for other CPU-bound work over a whole pack. */
+	public Executor executor() {
+		return pool;
+	}
+
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * A compiled session and where the time went.
+	 *
+	 * @param registryMs see {@link RegistrySet.Compiled#registryMs}
+	 */
+	public record Result(Session session, long compileMs, Map<String, Long> registryMs) {
+	}
+}
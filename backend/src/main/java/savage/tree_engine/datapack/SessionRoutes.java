@@ -1,36 +1,63 @@
 package savage.tree_engine.datapack;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.sun.net.httpserver.HttpExchange;
-import net.minecraft.core.RegistryAccess;
-import net.minecraft.server.MinecraftServer;
 import savage.tree_engine.api.ApiException;
 import savage.tree_engine.api.ApiServer;
 import savage.tree_engine.api.Http;
+import savage.tree_engine.api.Lane;
+import savage.tree_engine.jobs.Job;
+import savage.tree_engine.jobs.JobRoutes;
 
-import java.util.concurrent.Executor;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Session lifecycle: hand the backend a datapack, get back an id to reference
  * it by. Both preview modes take a sessionId rather than a datapack, so an
  * editor that is re-rendering on every keystroke uploads the pack once.
+ *
+ * <p>An edit can then be sent as {@code PATCH /v1/session/{id}} with just the
+ * files that changed. The result is a new session with its own content
+ * fingerprint; the one patched is left exactly as it was.
+ *
+ * <p>A session can also be a stack of packs uploaded separately - a library
+ * at the bottom, the project on top - named by their ids; see
+ * {@link PackLayers}. Only the layer that changed is ever sent again.
  */
 public final class SessionRoutes {
 	private static final String PREFIX = "/v1/session";
 
-	private final MinecraftServer server;
 	private final SessionCache cache;
+	private final BlobStore blobs;
+	private final LayerStore layers;
 	private final Gson gson;
 
-	public SessionRoutes(MinecraftServer server, SessionCache cache, Gson gson) {
-		this.server = server;
+	public SessionRoutes(SessionCache cache, BlobStore blobs, LayerStore layers, Gson gson) {
 		this.cache = cache;
+		this.blobs = blobs;
+		this.layers = layers;
 		this.gson = gson;
 	}
 
-	public void register(ApiServer api) {
-		api.route(PREFIX, this::handle);
+	public void register(ApiServer api, JobRoutes jobs) {
+		api.route(PREFIX, Lane.BULK, this::handle);
+		api.route(PREFIX + "/manifest", Lane.BULK, this::manifest);
+		api.route(PREFIX + "/layers", Lane.BULK, exchange -> {
+			Http.require(exchange, "POST");
+			run(exchange, prepareStack(exchange));
+		});
+		api.route("/v1/layer", Lane.BULK, this::uploadLayer);
+		// A large pack's compile is the slow part of a session; the upload
+		// itself is still read by the submitting request.
+		jobs.kind("session", Lane.BULK, this::prepareCreate);
+		jobs.kind("session/layers", Lane.BULK, this::prepareStack);
 	}
 
 	private void handle(HttpExchange exchange) throws Exception {
@@ -40,7 +67,11 @@ public final class SessionRoutes {
 		switch (exchange.getRequestMethod()) {
 			case "POST" -> {
 				if (hasId) throw ApiException.methodNotAllowed();
-				create(exchange);
+				run(exchange, prepareCreate(exchange));
+			}
+			case "PATCH" -> {
+				if (!hasId) throw ApiException.badRequest("Missing session id");
+				patch(exchange);
 			}
 			case "DELETE" -> {
 				if (!hasId) throw ApiException.badRequest("Missing session id");
@@ -50,44 +81,212 @@ public final class SessionRoutes {
 		}
 	}
 
-	private void create(HttpExchange exchange) throws Exception {
-		DatapackPayload payload = Http.readJson(exchange, gson, DatapackPayload.class);
-		String id = payload.fingerprint();
+	private Job.Work prepareCreate(HttpExchange exchange) throws Exception {
+		PackLayers stack = PackLayers.of(readPack(exchange));
+		return progress -> compile(stack, null);
+	}
+
+	/** Runs prepared work as a plain request, answering with its result. */
+	private void run(HttpExchange exchange, Job.Work work) throws Exception {
+		Http.sendJson(exchange, 200, gson.toJson(work.run(Job.Progress.NONE)));
+	}
 
-		// An unchanged datapack fingerprints identically, so a re-upload is a
-		// cache hit rather than a recompile.
-		Session existing = cache.get(id);
+	/** A whole pack, as {@code {"files": {...}}} or as a zip. */
+	private PackContents readPack(HttpExchange exchange) throws Exception {
+		String type = exchange.getRequestHeaders().getFirst("Content-Type");
+		if (type != null && type.startsWith("application/zip")) {
+			try (InputStream body = exchange.getRequestBody()) {
+				return PackArchive.read(body, this::held);
+			}
+		}
+		return Http.readJson(exchange, PackContents::read);
+	}
+
+	/**
+	 * A pack already held by fingerprint: a stored layer, or the source of a
+	 * compiled single-pack session, whose id is the pack's fingerprint.
+	 */
+	private PackContents held(String fingerprint) {
+		PackContents layer = layers.get(fingerprint);
+		if (layer != null) {
+			return layer;
+		}
+		Session session = cache.get(fingerprint);
+		return session != null && session.layers().layers().size() == 1 ? session.contents() : null;
+	}
+
+	/**
+	 * {@code POST /v1/layer} - a pack to stack sessions from, stored without
+	 * compiling it. Same body as {@code POST /v1/session}; answers the
+	 * {@code layerId} to name it by. A pack already sent as a session can be
+	 * named by its session id without this.
+	 */
+	private void uploadLayer(HttpExchange exchange) throws Exception {
+		Http.require(exchange, "POST");
+		PackContents contents = readPack(exchange);
+		boolean held = layers.get(contents.fingerprint()) != null;
+		layers.put(contents);
+		blobs.putAll(contents);
+
+		JsonObject body = new JsonObject();
+		body.addProperty("layerId", contents.fingerprint());
+		body.addProperty("fileCount", contents.size());
+		body.addProperty("cached", held);
+		Http.sendJson(exchange, 200, gson.toJson(body));
+	}
+
+	/**
+	 * {@code POST /v1/session/layers} - a session stacked from layers already
+	 * uploaded. The body is {@code {"layers": [id, ...]}}, bottom first.
+	 * Answers like {@code POST /v1/session}, or with {@code missing} - the
+	 * layer ids the backend does not hold, to upload and then ask again.
+	 *
+	 * <p>The layers below the top are compiled into a session of their own
+	 * and kept, and the whole stack is a recompile of that: a new top layer
+	 * costs what it reaches, not what the library under it does.
+	 */
+	private Job.Work prepareStack(HttpExchange exchange) throws Exception {
+		LayeredUpload upload = Http.readJson(exchange, gson, LayeredUpload.class);
+		List<String> ids = upload.layers() != null ? upload.layers() : List.of();
+		if (ids.isEmpty() || ids.size() > PackLayers.MAX_LAYERS) {
+			throw ApiException.badRequest("Expected between 1 and " + PackLayers.MAX_LAYERS + " layers");
+		}
+
+		List<PackContents> stack = new ArrayList<>();
+		for (String id : ids) {
+			PackContents layer = id != null ? layers.get(id) : null;
+			if (layer == null) {
+				JsonArray missing = new JsonArray();
+				layers.missing(ids).forEach(missing::add);
+				JsonObject body = new JsonObject();
+				body.add("missing", missing);
+				return progress -> body;
+			}
+			stack.add(layer);
+		}
+		PackLayers stacked = PackLayers.of(stack);
+		return progress -> compile(stacked, null);
+	}
+
+	/**
+	 * {@code POST /v1/session/manifest} - a datapack named by content hash.
+	 *
+	 * The body is {@code {"manifest": {path: hash}}}, optionally with
+	 * {@code "blobs": {hash: content}}. If the session already exists, or
+	 * every hash is held, this compiles and answers exactly like
+	 * {@code POST /v1/session}. Otherwise it answers {@code missing} - the
+	 * hashes to send - and the client repeats the request with those bodies
+	 * under {@code blobs}.
+	 *
+	 * <p>The session id is computed from the manifest before anything else,
+	 * so a pack that is still compiled never needs any content at all. That
+	 * works for content the backend has seen before, since the id is over
+	 * canonical hashes ({@link CanonicalJson}); a manifest naming anything new
+	 * goes the long way round, through the blob store.
+	 */
+	private void manifest(HttpExchange exchange) throws Exception {
+		Http.require(exchange, "POST");
+		ManifestUpload upload = Http.readJson(exchange, gson, ManifestUpload.class);
+		Map<String, String> manifest = upload.manifest() != null ? upload.manifest() : Map.of();
+
+		String id = PackContents.fingerprint(manifest);
+		Session existing = id != null ? cache.resolve(id) : null;
 		if (existing != null) {
-			respond(exchange, existing, true);
+			Http.sendJson(exchange, 200, gson.toJson(body(new SessionCache.Outcome(existing, null, false))));
 			return;
 		}
 
-		InMemoryPack pack = payload.toPack("tree-engine-session-" + id);
-
-		// Compilation is CPU-bound and can take a moment on a large pack; it
-		// runs on the calling API worker, which is already off the server
-		// thread, so the game loop is never blocked.
-		Executor inline = Runnable::run;
-		RegistryAccess.Frozen registries;
-		try {
-			registries = RegistrySet.compile(server, pack, inline);
-		} catch (ApiException e) {
-			// The loader names the file that failed but not why. Re-parse it
-			// here to recover the codec's actual complaint.
-			String precise = DatapackDiagnostics.explain(
-				server.registryAccess(), payload, e.detail());
-			if (precise != null) {
-				throw new ApiException(e.status(), e.getMessage(), precise, e);
+		Map<String, byte[]> sent = new HashMap<>();
+		if (upload.blobs() != null) {
+			for (Map.Entry<String, String> blob : upload.blobs().entrySet()) {
+				if (blob.getValue() == null) {
+					throw ApiException.badRequest("Blob has null content: " + blob.getKey());
+				}
+				byte[] bytes = blob.getValue().getBytes(StandardCharsets.UTF_8);
+				// Checked, not trusted: a blob stored under the wrong hash would
+				// poison every later pack that names it.
+				if (!PackContents.hash(bytes).equals(blob.getKey())) {
+					throw ApiException.badRequest("Blob does not match its hash: " + blob.getKey());
+				}
+				sent.put(blob.getKey(), bytes);
 			}
-			throw e;
 		}
 
-		Session session = new Session(id, registries, pack.size());
-		cache.put(session);
-		ApiServer.LOGGER.info("Compiled datapack session {} ({} files, {} cached)",
-			id, pack.size(), cache.size());
+		// What was sent first, and only then the store, which is filled after.
+		// The store is bounded: storing first let a pack larger than it evict
+		// its own held blobs with the ones just sent, and answer those as
+		// missing again on every round.
+		PackContents contents = PackContents.assemble(manifest, hash -> {
+			byte[] bytes = sent.get(hash);
+			return bytes != null ? bytes : blobs.get(hash);
+		});
+		sent.forEach(blobs::put);
+		if (contents == null) {
+			JsonArray missing = new JsonArray();
+			for (String hash : blobs.missing(manifest.values())) {
+				if (!sent.containsKey(hash)) {
+					missing.add(hash);
+				}
+			}
+			JsonObject body = new JsonObject();
+			body.add("missing", missing);
+			Http.sendJson(exchange, 200, gson.toJson(body));
+			return;
+		}
+		Http.sendJson(exchange, 200, gson.toJson(compile(PackLayers.of(contents), null)));
+	}
 
-		respond(exchange, session, false);
+	/**
+	 * Applies {@code files} (added or replaced) and {@code removed} (paths) to
+	 * an existing session's contents. Untouched files are carried over without
+	 * being re-encoded or re-hashed, and only the registries the change can
+	 * reach are decoded again. A stacked session's top layer is the one
+	 * patched; the layers under it stay as they are.
+	 */
+	private void patch(HttpExchange exchange) throws Exception {
+		Session parent = cache.require(Http.tail(exchange, PREFIX + "/"));
+		SessionPatch patch = Http.readJson(exchange, gson, SessionPatch.class);
+		PackContents top = parent.contents().patch(patch.files(), patch.removed());
+		Http.sendJson(exchange, 200, gson.toJson(compile(parent.layers().withTop(top), parent)));
+	}
+
+	/**
+	 * The session for {@code stack}, compiled if need be, as the response
+	 * body describing it.
+	 *
+	 * @param parent the session these layers were patched from, whose
+	 *               compiled registries may be partly reused; null to
+	 *               compile from scratch
+	 */
+	private JsonObject compile(PackLayers stack, Session parent) {
+		String id = stack.fingerprint();
+
+		// An unchanged datapack fingerprints identically, so a re-upload is a
+		// cache hit rather than a recompile - or, if only its source was still
+		// held, a recompile the client did not have to send anything for.
+		Session existing = cache.resolve(id);
+		if (existing != null) {
+			return body(new SessionCache.Outcome(existing, null, false));
+		}
+
+		// Whatever was sent in full is as good as sent by hash next time, and
+		// any pack uploaded whole can be stacked under another by its id. A
+		// patch's top layer is only the latest of many edits; see LayerStore.
+		blobs.putAll(stack.top());
+		if (parent == null) {
+			layers.putAll(stack);
+		}
+
+		// Through the cache, so an identical upload already compiling is
+		// joined rather than compiled a second time alongside it. The cache
+		// reserves the compile's memory, and only for the caller compiling.
+		SessionCache.Outcome outcome = cache.compile(stack, parent);
+		if (outcome.compiled() != null && !outcome.joined()) {
+			ApiServer.LOGGER.info("Compiled datapack session {} ({} files, {}ms, {} cached{})",
+				id, outcome.session().fileCount(), outcome.compiled().compileMs(), cache.size(),
+				parent != null ? ", patched from " + parent.id() : "");
+		}
+		return body(outcome);
 	}
 
 	private void delete(HttpExchange exchange) throws Exception {
@@ -98,11 +297,46 @@ public final class SessionRoutes {
 		Http.sendJson(exchange, removed ? 200 : 404, gson.toJson(body));
 	}
 
-	private void respond(HttpExchange exchange, Session session, boolean cached) throws Exception {
+	private static JsonObject body(SessionCache.Outcome outcome) {
+		Session session = outcome.session();
+		SessionCompiler.Result compiled = outcome.compiled();
 		JsonObject body = new JsonObject();
 		body.addProperty("sessionId", session.id());
 		body.addProperty("fileCount", session.fileCount());
-		body.addProperty("cached", cached);
-		Http.sendJson(exchange, 200, gson.toJson(body));
+		body.addProperty("cached", compiled == null);
+		if (compiled != null) {
+			body.addProperty("joined", outcome.joined());
+			body.addProperty("compileMs", compiled.compileMs());
+			JsonObject registryMs = new JsonObject();
+			compiled.registryMs().forEach(registryMs::addProperty);
+			body.add("registryMs", registryMs);
+		}
+		return body;
+	}
+
+	/**
+	 * The body of a PATCH.
+	 *
+	 * @param files   path to content, for files added or changed
+	 * @param removed paths to delete
+	 */
+	private record SessionPatch(Map<String, String> files, List<String> removed) {
+	}
+
+	/**
+	 * The body of a manifest upload.
+	 *
+	 * @param manifest path to content hash, for every file in the pack
+	 * @param blobs    hash to content, for those the backend said it lacked
+	 */
+	private record ManifestUpload(Map<String, String> manifest, Map<String, String> blobs) {
+	}
+
+	/**
+	 * The body of a layered upload.
+	 *
+	 * @param layers layer ids, bottom first
+	 */
+	private record LayeredUpload(List<String> layers) {
 	}
 }
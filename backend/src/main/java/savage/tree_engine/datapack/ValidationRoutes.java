@@ -0,0 +1,57 @@
+package savage.tree_engine.datapack;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import savage.tree_engine.api.ApiServer;
+import savage.tree_engine.api.Http;
+import savage.tree_engine.api.Lane;
+
+/**
+ * {@code POST /v1/validate} - every problem with a pack's feature files, in
+ * one answer, without compiling it.
+ *
+ * Takes the same {@code {"files": {...}}} body as {@code POST /v1/session}
+ * and answers whether the configured and placed features in it parse, and if
+ * not, why, file by file. Meant to be run on every save; see
+ * {@link PackValidator} for why that is cheap after the first.
+ */
+public final class ValidationRoutes {
+	private final PackValidator validator;
+	private final Gson gson;
+
+	public ValidationRoutes(PackValidator validator, Gson gson) {
+		this.validator = validator;
+		this.gson = gson;
+	}
+
+	public void register(ApiServer api) {
+		api.route("/v1/validate", Lane.BULK, this::validate);
+	}
+
+	private void validate(HttpExchange exchange) throws Exception {
+		Http.require(exchange, "POST");
+		PackContents contents = Http.readJson(exchange, PackContents::read);
+
+		long start = System.nanoTime();
+		PackValidator.Report report = validator.validate(contents);
+
+		JsonArray problems = new JsonArray();
+		for (PackValidator.Problem problem : report.problems()) {
+			JsonObject entry = new JsonObject();
+			// Back in the form the client sent it, so it can find the file.
+			entry.addProperty("path",
+				"data/" + problem.file().getNamespace() + "/" + problem.file().getPath());
+			entry.addProperty("error", problem.error());
+			problems.add(entry);
+		}
+		JsonObject body = new JsonObject();
+		body.addProperty("valid", report.problems().isEmpty());
+		body.addProperty("checked", report.checked());
+		body.addProperty("cached", report.cached());
+		body.addProperty("ms", (System.nanoTime() - start) / 1_000_000L);
+		body.add("problems", problems);
+		Http.sendJson(exchange, 200, gson.toJson(body));
+	}
+}
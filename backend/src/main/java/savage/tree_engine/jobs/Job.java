@@ -0,0 +1,239 @@
+package savage.tree_engine.jobs;
+
+import com.google.gson.JsonObject;
+import savage.tree_engine.api.ApiException;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * One piece of work submitted through {@code /v1/jobs}, from the moment it is
+ * queued until its result is collected.
+ *
+ * Everything here is guarded by the job's own monitor, which is also what
+ * anyone following it waits on: every change bumps {@link #version} and wakes
+ * them, so a progress stream never polls.
+ */
+public final class Job implements Job.Progress {
+	/** How often progress alone wakes a follower; a state change always does. */
+	private static final long REPORT_INTERVAL_NANOS = 100_000_000L;
+
+	public enum State {
+		QUEUED, RUNNING, DONE, FAILED, CANCELLED;
+
+		public boolean finished() {
+			return this == DONE || this == FAILED || this == CANCELLED;
+		}
+	}
+
+	private final String id;
+	private final String kind;
+	private final long submittedNanos = System.nanoTime();
+
+	private State state = State.QUEUED;
+	private long startedNanos;
+	private long finishedNanos;
+	private long done;
+	private long total;
+	private long lastReportNanos;
+	private boolean cancelRequested;
+	private byte[] result;
+	private ApiException failure;
+	private int version;
+
+	Job(String id, String kind) {
+		this.id = id;
+		this.kind = kind;
+	}
+
+	public String id() {
+		return id;
+	}
+
+	public String kind() {
+		return kind;
+	}
+
+	public synchronized State state() {
+		return state;
+	}
+
+	public synchronized int version() {
+		return version;
+	}
+
+	@Override
+	public synchronized void report(long done, long total) {
+		this.done = done;
+		this.total = total;
+		long now = System.nanoTime();
+		// A benchmark reports every iteration; whoever is following it only
+		// needs to hear about a few of them a second.
+		if (done >= total || now - lastReportNanos >= REPORT_INTERVAL_NANOS) {
+			lastReportNanos = now;
+			changed();
+		}
+	}
+
+	@Override
+	public synchronized boolean cancelled() {
+		return cancelRequested;
+	}
+
+	/** Moves a queued job to running; false if it was cancelled first. */
+	synchronized boolean start() {
+		if (state != State.QUEUED) {
+			return false;
+		}
+		state = State.RUNNING;
+		startedNanos = System.nanoTime();
+		changed();
+		return true;
+	}
+
+	synchronized void succeed(byte[] json) {
+		if (cancelRequested) {
+			finish(State.CANCELLED);
+			return;
+		}
+		result = json;
+		finish(State.DONE);
+	}
+
+	synchronized void fail(ApiException e) {
+		failure = e;
+		finish(State.FAILED);
+	}
+
+	/**
+	 * Asks the job to stop. A queued job never starts; a running one is
+	 * flagged, and stops at its next check or, if the work does not check,
+	 * has its result discarded when it ends.
+	 *
+	 * @return whether the job was still unfinished
+	 */
+	synchronized boolean cancel() {
+		if (state.finished()) {
+			return false;
+		}
+		cancelRequested = true;
+		if (state == State.QUEUED) {
+			finish(State.CANCELLED);
+		} else {
+			changed();
+		}
+		return true;
+	}
+
+	synchronized void cancelledWhileRunning() {
+		finish(State.CANCELLED);
+	}
+
+	/** The result of a finished job, or the failure it ended with. */
+	synchronized byte[] result() {
+		return switch (state) {
+			case DONE -> result;
+			case FAILED -> throw failure;
+			case CANCELLED -> throw ApiException.conflict("Job " + id + " was cancelled");
+			default -> throw ApiException.conflict("Job " + id + " has not finished");
+		};
+	}
+
+	/** What the result holds on to; nothing until it is done. */
+	synchronized long resultBytes() {
+		return result != null ? result.length : 0;
+	}
+
+	/**
+	 * Waits until the job has changed since {@code seen}, or
+	 * {@code timeoutMillis} pass.
+	 */
+	synchronized void awaitChange(int seen, long timeoutMillis) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+		while (version == seen) {
+			long remaining = (deadline - System.nanoTime()) / 1_000_000L;
+			if (remaining <= 0) {
+				return;
+			}
+			wait(remaining);
+		}
+	}
+
+	/** Where the job is, as {@code GET /v1/jobs/{id}} answers it. */
+	public synchronized JsonObject status() {
+		JsonObject body = new JsonObject();
+		body.addProperty("jobId", id);
+		body.addProperty("kind", kind);
+		body.addProperty("status", state.name().toLowerCase());
+		if (cancelRequested && !state.finished()) {
+			body.addProperty("cancelling", true);
+		}
+		if (total > 0) {
+			JsonObject progress = new JsonObject();
+			progress.addProperty("done", done);
+			progress.addProperty("total", total);
+			body.add("progress", progress);
+		}
+		long now = state.finished() ? finishedNanos : System.nanoTime();
+		body.addProperty("queuedMs", ((startedNanos != 0 ? startedNanos : now) - submittedNanos) / 1_000_000L);
+		if (startedNanos != 0) {
+			body.addProperty("runMs", (now - startedNanos) / 1_000_000L);
+		}
+		if (state == State.FAILED) {
+			body.addProperty("error", failure.getMessage());
+			if (failure.detail() != null) {
+				body.addProperty("detail", failure.detail());
+			}
+		}
+		return body;
+	}
+
+	private void finish(State end) {
+		state = end;
+		finishedNanos = System.nanoTime();
+		changed();
+	}
+
+	private void changed() {
+		version++;
+		notifyAll();
+	}
+
+	/**
+	 * What a job's work sees of its job: somewhere to say how far along it
+	 * is, and whether anyone still wants the answer.
+	 */
+	public interface Progress {
+		/** For work run inline, as a plain request, where nobody is watching. */
+		Progress NONE = new Progress() {
+			@Override
+			public void report(long done, long total) {
+			}
+
+			@Override
+			public boolean cancelled() {
+				return false;
+			}
+		};
+
+		void report(long done, long total);
+
+		boolean cancelled();
+
+		/** Stops the work here if the job has been cancelled. */
+		default void checkCancelled() {
+			if (cancelled()) {
+				throw new CancellationException();
+			}
+		}
+	}
+
+	/**
+	 * A request that has been read and checked, ready to run. Preparing on
+	 * the submitting request means a malformed body fails there and then,
+	 * with a 400, rather than as a job that failed later.
+	 */
+	@FunctionalInterface
+	public interface Work {
+		JsonObject run(Progress progress) throws Exception;
+	}
+}
@@ -0,0 +1,156 @@
+package savage.tree_engine.jobs;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import savage.tree_engine.api.ApiException;
+import savage.tree_engine.api.ApiServer;
+import savage.tree_engine.api.Http;
+import savage.tree_engine.api.Lane;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@code /v1/jobs} - the slow routes, run in the background.
+ *
+ * <ul>
+ *   <li>{@code POST /v1/jobs/{kind}} takes exactly the body the route of that
+ *       kind takes, checks it, queues it and answers {@code 202} with the
+ *       job's id.</li>
+ *   <li>{@code GET /v1/jobs/{id}} is where it has got to.</li>
+ *   <li>{@code GET /v1/jobs/{id}/events} streams the same, one JSON object
+ *       per line, each time it changes, until it finishes.</li>
+ *   <li>{@code GET /v1/jobs/{id}/result} is the body the route would have
+ *       answered, once; or its error, with the status it would have had.</li>
+ *   <li>{@code DELETE /v1/jobs/{id}} cancels it.</li>
+ * </ul>
+ *
+ * <p>Route classes offer their slow endpoints here by {@link #kind}, with the
+ * same code behind both: reading the request is split from running it, and
+ * the plain route simply does both at once.
+ *
+ * <p>A submission is read and checked in the request - for an upload, that
+ * is most of the work - so it waits in the lane of the route it wraps, not
+ * in admin's. Event streams wait in a lane of their own; everything else
+ * here is admin.
+ */
+public final class JobRoutes {
+	private static final String PREFIX = "/v1/jobs/";
+
+	/** A quiet stream repeats the status this often, so a dead peer is noticed. */
+	private static final long HEARTBEAT_MILLIS = 15_000;
+
+	private final JobStore store;
+	private final Gson gson;
+	private final Map<String, Kind> kinds = new TreeMap<>();
+	private final Map<String, Lane> lanes = new TreeMap<>();
+
+	public JobRoutes(JobStore store, Gson gson) {
+		this.store = store;
+		this.gson = gson;
+	}
+
+	/**
+	 * Makes {@code kind} submittable, its submissions waiting in {@code lane}
+	 * - the lane of the route it wraps. Call before {@link #register}'s
+	 * routes see traffic; the set of kinds is fixed once the server listens.
+	 */
+	public void kind(String name, Lane lane, Kind kind) {
+		kinds.put(name, kind);
+		lanes.put(name, lane);
+	}
+
+	public void register(ApiServer api) {
+		api.route("/v1/jobs", this::lane, this::handle);
+	}
+
+	private Lane lane(HttpExchange exchange) {
+		String path = exchange.getRequestURI().getPath();
+		String rest = path.startsWith(PREFIX) ? path.substring(PREFIX.length()) : "";
+		return switch (exchange.getRequestMethod()) {
+			case "POST" -> lanes.getOrDefault(rest, Lane.ADMIN);
+			case "GET" -> rest.endsWith("/events") ? Lane.STREAM : Lane.ADMIN;
+			default -> Lane.ADMIN;
+		};
+	}
+
+	private void handle(HttpExchange exchange) throws Exception {
+		String path = exchange.getRequestURI().getPath();
+		if (!path.startsWith(PREFIX) || path.length() == PREFIX.length()) {
+			throw ApiException.notFound("Expected /v1/jobs/{kind} or /v1/jobs/{id}; kinds: "
+				+ String.join(", ", kinds.keySet()));
+		}
+		String rest = path.substring(PREFIX.length());
+
+		switch (exchange.getRequestMethod()) {
+			case "POST" -> submit(exchange, rest);
+			case "GET" -> {
+				if (rest.endsWith("/result")) {
+					Http.sendJson(exchange, 200, ByteBuffer.wrap(store.collect(strip(rest, "/result"))));
+				} else if (rest.endsWith("/events")) {
+					stream(exchange, store.require(strip(rest, "/events")));
+				} else {
+					Http.sendJson(exchange, 200, gson.toJson(store.require(rest).status()));
+				}
+			}
+			case "DELETE" -> {
+				JsonObject body = new JsonObject();
+				body.addProperty("cancelled", store.cancel(rest));
+				Http.sendJson(exchange, 200, gson.toJson(body));
+			}
+			default -> throw ApiException.methodNotAllowed();
+		}
+	}
+
+	private void submit(HttpExchange exchange, String name) throws Exception {
+		Kind kind = kinds.get(name);
+		if (kind == null) {
+			throw ApiException.notFound("Unknown job kind: " + name + "; kinds: "
+				+ String.join(", ", kinds.keySet()));
+		}
+		Job job = store.submit(name, kind.prepare(exchange));
+		Http.sendJson(exchange, 202, gson.toJson(job.status()));
+	}
+
+	/**
+	 * Writes the job's status as a line of JSON now and on every change until
+	 * it has finished. The last line is its final status; the result itself is
+	 * still fetched from {@code /result}.
+	 */
+	private void stream(HttpExchange exchange, Job job) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+		exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+		exchange.sendResponseHeaders(200, 0);
+		try (OutputStream out = exchange.getResponseBody()) {
+			while (true) {
+				int seen = job.version();
+				out.write((gson.toJson(job.status()) + "\n").getBytes(StandardCharsets.UTF_8));
+				out.flush();
+				if (job.state().finished()) {
+					return;
+				}
+				job.awaitChange(seen, HEARTBEAT_MILLIS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			// The client stopped listening; the job itself carries on.
+			ApiServer.LOGGER.debug("Job {} event stream closed", job.id(), e);
+		}
+	}
+
+	private static String strip(String path, String suffix) {
+		return path.substring(0, path.length() - suffix.length());
+	}
+
+	/** A route's slow half, offered as a job; see {@link Job.Work}. */
+	@FunctionalInterface
+	public interface Kind {
+		Job.Work prepare(HttpExchange exchange) throws Exception;
+	}
+}
@@ -0,0 +1,158 @@
+package savage.tree_engine.jobs;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import savage.tree_engine.api.ApiException;
+import savage.tree_engine.api.ApiServer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs jobs off the request workers and holds their results until they are
+ * collected.
+ *
+ * A long benchmark, a big compile or a 10x10 chunk preview used to hold one
+ * of the few API workers for its whole run, with the client blocked on the
+ * response and no way to see how far it had got or to give up on it. As a job
+ * it runs on a pool of its own, the request that submitted it returns at once,
+ * and the worker goes back to serving everything else.
+ *
+ * <p>Both sides are bounded. The pool has a fixed number of threads and a
+ * fixed queue in front of them; a submission that would overflow the queue is
+ * refused with a 503 rather than left to pile up. Finished jobs are kept until
+ * their result is fetched, but only so many of them and only so many bytes of
+ * results: past either bound the oldest finished job is dropped, and fetching
+ * it answers 404. Nothing queued or running is ever dropped.
+ */
+public final class JobStore {
+	/** Submissions waiting for a thread before new ones are refused. */
+	private static final int MAX_QUEUED = 32;
+	/** Finished jobs held for collection. */
+	private static final int MAX_FINISHED = 32;
+	/** What their results may add up to; a 10x10 preview alone is tens of megabytes. */
+	private static final long MAX_RESULT_BYTES = 256L * 1024 * 1024;
+
+	private final ThreadPoolExecutor executor;
+	private final Gson gson;
+	// Insertion-ordered: the oldest finished job is the first one found.
+	private final LinkedHashMap<String, Job> jobs = new LinkedHashMap<>();
+
+	public JobStore(int threads, Gson gson) {
+		AtomicInteger counter = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(
+			Math.max(1, threads), Math.max(1, threads), 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<>(MAX_QUEUED), r -> {
+				Thread t = new Thread(r, "tree-engine-job-" + counter.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+		this.gson = gson;
+	}
+
+	/** Queues {@code work}, or refuses it if the queue is full. */
+	public Job submit(String kind, Job.Work work) {
+		Job job = new Job(UUID.randomUUID().toString().replace("-", ""), kind);
+		synchronized (this) {
+			jobs.put(job.id(), job);
+		}
+		try {
+			executor.execute(() -> run(job, work));
+		} catch (RejectedExecutionException e) {
+			synchronized (this) {
+				jobs.remove(job.id());
+			}
+			throw ApiException.unavailable("Too many jobs queued; try again shortly");
+		}
+		return job;
+	}
+
+	private void run(Job job, Job.Work work) {
+		if (!job.start()) {
+			return;
+		}
+		try {
+			JsonObject result = work.run(job);
+			job.succeed(gson.toJson(result).getBytes(StandardCharsets.UTF_8));
+		} catch (CancellationException e) {
+			job.cancelledWhileRunning();
+		} catch (ApiException e) {
+			job.fail(e);
+		} catch (Exception | Error e) {
+			ApiServer.LOGGER.error("Job {} ({}) failed", job.id(), job.kind(), e);
+			job.fail(ApiException.internal("Job failed", e));
+		}
+		trim();
+	}
+
+	/** The job, or a 404 if it is unknown or was dropped before collection. */
+	public synchronized Job require(String id) {
+		Job job = jobs.get(id);
+		if (job == null) {
+			throw ApiException.notFound("Unknown job: " + id);
+		}
+		return job;
+	}
+
+	/**
+	 * The finished job's result, which is then forgotten: a result is fetched
+	 * once. A failed job answers with its failure, and is forgotten too.
+	 */
+	public byte[] collect(String id) {
+		Job job = require(id);
+		if (!job.state().finished()) {
+			throw ApiException.conflict("Job " + id + " has not finished");
+		}
+		synchronized (this) {
+			jobs.remove(id);
+		}
+		return job.result();
+	}
+
+	/** @return whether there was an unfinished job to cancel */
+	public boolean cancel(String id) {
+		boolean cancelled = require(id).cancel();
+		trim();
+		return cancelled;
+	}
+
+	public synchronized int size() {
+		return jobs.size();
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+		synchronized (this) {
+			jobs.values().forEach(Job::cancel);
+			jobs.clear();
+		}
+	}
+
+	/** Drops the oldest finished jobs past either bound. */
+	private synchronized void trim() {
+		int finished = 0;
+		long bytes = 0;
+		for (Job job : jobs.values()) {
+			if (job.state().finished()) {
+				finished++;
+				bytes += job.resultBytes();
+			}
+		}
+		var it = jobs.values().iterator();
+		while ((finished > MAX_FINISHED || bytes > MAX_RESULT_BYTES) && it.hasNext()) {
+			Job job = it.next();
+			if (job.state().finished()) {
+				finished--;
+				bytes -= job.resultBytes();
+				it.remove();
+			}
+		}
+	}
+}
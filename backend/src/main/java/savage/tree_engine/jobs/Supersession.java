@@ -0,0 +1,136 @@
+package savage.tree_engine.jobs;
+
+import savage.tree_engine.api.ApiException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Lets a newer preview cancel the one it replaces.
+ *
+ * The editor previews as the user types, faster than previews complete, and
+ * every one it has stopped caring about used to run to the end on a worker
+ * anyway - ahead of the one the user is actually waiting for. A request may
+ * now name a {@code supersede} key: a later request with the same key cancels
+ * the earlier, which stops at its next check and answers 409. It may also
+ * give a {@code deadlineMs}, past which nobody is waiting for it either, and
+ * it stops the same way with a 504.
+ *
+ * <p>Stopping is cooperative. The checks sit where the time goes - between
+ * chunks while decorating, while waiting for terrain, and on every block a
+ * single tree places - so a cancelled request gives up its worker within one
+ * chunk's or one wait's worth of work rather than the whole request's.
+ */
+public final class Supersession {
+	/**
+	 * Keys remembered at once. A key is forgotten when its request ends, so
+	 * this only bounds the ones leaked by work that never ran at all (a job
+	 * cancelled in the queue, say).
+	 */
+	private static final int MAX_KEYS = 1024;
+
+	private final Map<String, Ticket> latest = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Ticket> eldest) {
+			return size() > MAX_KEYS;
+		}
+	};
+
+	/**
+	 * Registers a request as it arrives, cancelling whatever held {@code key}
+	 * before it.
+	 *
+	 * @param key        the client's supersede key, or null for a request
+	 *                   nothing can supersede
+	 * @param deadlineMs how long from now the client will wait, or null for
+	 *                   as long as it takes
+	 */
+	public Ticket claim(String key, Integer deadlineMs) {
+		if (deadlineMs != null && deadlineMs <= 0) {
+			throw ApiException.badRequest("deadlineMs must be positive");
+		}
+		Ticket ticket = new Ticket(key,
+			deadlineMs != null ? System.nanoTime() + deadlineMs * 1_000_000L : 0);
+		if (key != null) {
+			Ticket previous;
+			synchronized (this) {
+				previous = latest.put(key, ticket);
+			}
+			if (previous != null) {
+				previous.superseded = true;
+			}
+		}
+		return ticket;
+	}
+
+	private synchronized void release(Ticket ticket) {
+		if (ticket.key != null) {
+			latest.remove(ticket.key, ticket);
+		}
+	}
+
+	/**
+	 * One request's claim. As a {@link Job.Progress} it is cancelled when
+	 * superseded, when its deadline passes, or when the job it runs in is.
+	 */
+	public final class Ticket implements Job.Progress {
+		private final String key;
+		/** {@link System#nanoTime} past which to stop; 0 for none. */
+		private final long deadlineNanos;
+		private volatile boolean superseded;
+		private volatile Job.Progress outer = Job.Progress.NONE;
+
+		private Ticket(String key, long deadlineNanos) {
+			this.key = key;
+			this.deadlineNanos = deadlineNanos;
+		}
+
+		/**
+		 * {@code work} run under this ticket, releasing the key when it ends.
+		 * Run inline the progress it is given is {@link Job.Progress#NONE};
+		 * run as a job it is the job, and cancelling either stops it.
+		 */
+		public Job.Work guard(Job.Work work) {
+			return progress -> {
+				outer = progress;
+				try {
+					return work.run(this);
+				} finally {
+					release(this);
+				}
+			};
+		}
+
+		@Override
+		public void report(long done, long total) {
+			outer.report(done, total);
+		}
+
+		@Override
+		public boolean cancelled() {
+			return superseded || expired() || outer.cancelled();
+		}
+
+		/**
+		 * Stops with the reason: a job cancelled by its owner ends as
+		 * cancelled, anything else answers the request with why it stopped.
+		 */
+		@Override
+		public void checkCancelled() {
+			if (superseded) {
+				throw ApiException.conflict("Superseded by a newer request with supersede key " + key);
+			}
+			if (expired()) {
+				throw ApiException.timedOut("Deadline passed before the preview finished");
+			}
+			if (outer.cancelled()) {
+				throw new CancellationException();
+			}
+		}
+
+		private boolean expired() {
+			return deadlineNanos != 0 && System.nanoTime() - deadlineNanos > 0;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package savage.tree_engine.preview;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import net.minecraft.core.BlockPos;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The last few preview results, kept so the next preview can be answered as a
+ * difference from one of them instead of in full.
+ *
+ * Editing is a loop of small tweaks - a leaf radius, a trunk height - and each
+ * re-preview returns a block list that is overwhelmingly the one before it.
+ * Every response therefore carries a {@code resultToken}; a request that quotes
+ * one back as {@code since} gets only what was added, changed and removed
+ * relative to that result.
+ *
+ * <p>A token the server no longer holds is not an error. The response is simply
+ * sent in full, exactly as if no token had been quoted, so a client only ever
+ * has to handle the two shapes and never has to retry.
+ *
+ * <p>Each preview mode keeps its own instance: a tree result and a chunk result
+ * are never meaningfully comparable, and keeping them apart means a burst of
+ * one cannot evict the other.
+ */
+public final class PreviewResults {
+	/** Enough to cover a client flipping between a couple of variants. */
+	private static final int MAX_RESULTS = 8;
+
+	/**
+	 * The actual bound. A single 10x10 chunk preview is over half a million
+	 * blocks, so a count of results alone would let a few of them pin
+	 * gigabytes; the oldest results go first once this is exceeded.
+	 */
+	private static final long MAX_BLOCKS = 1_500_000;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final LinkedHashMap<String, List<BlockDto>> results =
+		new LinkedHashMap<>(16, 0.75f, true);
+	private long heldBlocks;
+
+	/**
+	 * Writes {@code blocks} into {@code response}: in full, or as a delta when
+	 * {@code since} names a result still held. Either way the response gains a
+	 * {@code resultToken} for this result, and {@code blockCount} is the size of
+	 * the whole result rather than of the delta.
+	 */
+	public void write(JsonObject response, Gson gson, List<BlockDto> blocks, String since) {
+		List<BlockDto> previous = since != null ? lookup(since) : null;
+
+		if (previous == null) {
+			response.add("blocks", gson.toJsonTree(blocks));
+			response.add("blockFlags", gson.toJsonTree(BlockFlagsDto.forBlocks(blocks)));
+		} else {
+			Delta delta = Delta.between(since, previous, blocks);
+			response.add("delta", gson.toJsonTree(delta));
+			// Flags only for what the client has not seen. It already holds
+			// flags for every block it is keeping.
+			List<BlockDto> fresh = new ArrayList<>(delta.added().size() + delta.changed().size());
+			fresh.addAll(delta.added());
+			fresh.addAll(delta.changed());
+			response.add("blockFlags", gson.toJsonTree(BlockFlagsDto.forBlocks(fresh)));
+		}
+		response.addProperty("blockCount", blocks.size());
+		response.addProperty("resultToken", remember(blocks));
+	}
+
+	private synchronized List<BlockDto> lookup(String token) {
+		return results.get(token);
+	}
+
+	private synchronized String remember(List<BlockDto> blocks) {
+		String token = HexFormat.of().toHexDigits(RANDOM.nextLong());
+		results.put(token, List.copyOf(blocks));
+		heldBlocks += blocks.size();
+
+		// Oldest first, but never the result just stored: a client must always
+		// be able to quote the token it was handed, even for a result larger
+		// than the whole budget.
+		var eldest = results.entrySet().iterator();
+		while ((results.size() > MAX_RESULTS || heldBlocks > MAX_BLOCKS) && results.size() > 1) {
+			heldBlocks -= eldest.next().getValue().size();
+			eldest.remove();
+		}
+		return token;
+	}
+
+	/**
+	 * What changed between two results.
+	 *
+	 * @param since   the token this delta is relative to, echoed so a client
+	 *                can check it is patching the result it thinks it is
+	 * @param added   blocks at positions the previous result did not have
+	 * @param changed blocks at positions it had, now in a different state
+	 * @param removed positions, as {@code [x, y, z]}, that are now absent
+	 */
+	public record Delta(String since, List<BlockDto> added, List<BlockDto> changed, List<int[]> removed) {
+
+		/** {@code since} may be null when the base is not a held result. */
+		public static Delta between(String since, List<BlockDto> previous, List<BlockDto> current) {
+			Map<Long, BlockDto> before = new HashMap<>(previous.size() * 2);
+			for (BlockDto block : previous) {
+				before.put(BlockPos.asLong(block.x(), block.y(), block.z()), block);
+			}
+
+			List<BlockDto> added = new ArrayList<>();
+			List<BlockDto> changed = new ArrayList<>();
+			for (BlockDto block : current) {
+				BlockDto old = before.remove(BlockPos.asLong(block.x(), block.y(), block.z()));
+				if (old == null) {
+					added.add(block);
+				} else if (!old.equals(block)) {
+					changed.add(block);
+				}
+			}
+
+			// Whatever was not claimed by the current result is gone.
+			List<int[]> removed = new ArrayList<>(before.size());
+			for (BlockDto block : before.values()) {
+				removed.add(new int[]{block.x(), block.y(), block.z()});
+			}
+			return new Delta(since, added, changed, removed);
+		}
+	}
+}
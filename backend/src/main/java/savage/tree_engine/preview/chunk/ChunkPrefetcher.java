@@ -0,0 +1,179 @@
+package savage.tree_engine.preview.chunk;
+
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.world.level.ChunkPos;
+import savage.tree_engine.api.ApiServer;
+import savage.tree_engine.jobs.Job;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Generates the terrain around the last preview before anyone asks for it.
+ *
+ * After previewing an area, the next thing a user does is almost always pan
+ * to the one beside it, and the first preview there pays for cold chunk
+ * generation - by far the largest phase of a natural preview. So once a
+ * preview is done, the ring of chunks around it is generated and snapshotted
+ * into the {@link TerrainCache} in the background, where the next preview
+ * finds it.
+ *
+ * <p>Speculative work must never slow down real work, which shapes all of
+ * this:
+ * <ul>
+ *   <li>It runs on one low-priority thread, in small batches, and only while
+ *       no request at all is in flight.</li>
+ *   <li>Any real chunk preview cancels it outright. Batches already handed
+ *       to the server finish - they are what the next preview probably wants
+ *       anyway - but no new one starts.</li>
+ *   <li>It waits on its futures instead of driving the server thread the way
+ *       {@link ChunkPreviewer} does, so generation only advances in the slack
+ *       of each tick.</li>
+ * </ul>
+ */
+final class ChunkPrefetcher {
+	/** Small enough that a batch in flight never holds up a real request for long. */
+	private static final int BATCH = 4;
+
+	private static final long IDLE_POLL_MS = 25;
+
+	private final MinecraftServer server;
+	private final ChunkPreviewer previewer;
+	private final TerrainCache cache;
+	private final int ring;
+	private final IntSupplier inFlight;
+	private final ExecutorService thread;
+	// Bumped by every real preview and every new ring; a task only keeps going
+	// while the value it started under is still current.
+	private final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * @param ring     chunks of terrain to prefetch beyond a preview's own
+	 *                 margin; 0 disables prefetching
+	 * @param inFlight how many API requests are being handled right now
+	 */
+	ChunkPrefetcher(
+		MinecraftServer server, ChunkPreviewer previewer, TerrainCache cache, int ring,
+		IntSupplier inFlight) {
+		this.server = server;
+		this.previewer = previewer;
+		this.cache = cache;
+		this.ring = Math.max(0, ring);
+		this.inFlight = inFlight;
+		this.thread = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "tree-engine-prefetch");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		});
+	}
+
+	int ring() {
+		return ring;
+	}
+
+	/** Stops whatever is being prefetched; a real preview needs the server. */
+	void cancel() {
+		generation.incrementAndGet();
+	}
+
+	/**
+	 * Stops prefetching for good. The thread is a daemon, but left running it
+	 * would hold the old server - and every snapshot in the cache - until the
+	 * process exits.
+	 */
+	void shutdown() {
+		cancel();
+		thread.shutdownNow();
+	}
+
+	/**
+	 * Prefetches the ring around a box of chunks that was just snapshotted,
+	 * nearest chunks first. The box is the one a preview generated, margin
+	 * included, so the ring is exactly what a neighbouring preview would add.
+	 */
+	void around(int minChunkX, int maxChunkX, int minChunkZ, int maxChunkZ) {
+		if (ring == 0) {
+			return;
+		}
+		long started = generation.incrementAndGet();
+
+		List<ChunkPos> wanted = new ArrayList<>();
+		for (int x = minChunkX - ring; x <= maxChunkX + ring; x++) {
+			for (int z = minChunkZ - ring; z <= maxChunkZ + ring; z++) {
+				if (x < minChunkX || x > maxChunkX || z < minChunkZ || z > maxChunkZ) {
+					wanted.add(new ChunkPos(x, z));
+				}
+			}
+		}
+		wanted.sort(Comparator.comparingInt(pos -> Math.max(
+			Math.max(minChunkX - pos.x(), pos.x() - maxChunkX),
+			Math.max(minChunkZ - pos.z(), pos.z() - maxChunkZ))));
+
+		// Never prefetch so much that the preview just made gets evicted to
+		// make room for it.
+		long box = (long) (maxChunkX - minChunkX + 1) * (maxChunkZ - minChunkZ + 1);
+		int room = (int) Math.max(0, TerrainCache.MAX_SNAPSHOTS - box);
+		List<ChunkPos> ringChunks = wanted.subList(0, Math.min(room, wanted.size()));
+
+		thread.execute(() -> run(started, ringChunks));
+	}
+
+	private void run(long started, List<ChunkPos> chunks) {
+		long tStart = System.nanoTime();
+		int fetched = 0;
+		try {
+			for (int i = 0; i < chunks.size(); i += BATCH) {
+				if (!awaitIdle(started)) {
+					break;
+				}
+				List<ChunkPos> batch = new ArrayList<>();
+				for (ChunkPos pos : chunks.subList(i, Math.min(i + BATCH, chunks.size()))) {
+					if (!cache.contains(pos)) {
+						batch.add(pos);
+					}
+				}
+				if (batch.isEmpty()) {
+					continue;
+				}
+				ChunkPreviewer.Generated generated = previewer.generate(batch, false, Job.Progress.NONE);
+				for (TerrainSnapshot snapshot : generated.snapshots()) {
+					cache.put(snapshot, true);
+				}
+				fetched += batch.size();
+			}
+		} catch (Exception e) {
+			// Nothing depends on a prefetch succeeding; the real preview will
+			// generate the chunk itself and report anything genuinely wrong.
+			ApiServer.LOGGER.debug("Prefetch stopped early", e);
+		}
+		if (fetched > 0) {
+			TerrainCache.Stats stats = cache.stats(ring);
+			ApiServer.LOGGER.info(
+				"Prefetched {} chunks in {}ms; {} of {} prefetched so far were used ({} wasted)",
+				fetched, (System.nanoTime() - tStart) / 1_000_000L,
+				stats.prefetchUsed(), stats.prefetched(), stats.prefetchWasted());
+		}
+	}
+
+	/**
+	 * Waits until no request is being handled. False if this task has been
+	 * superseded or the server is going away in the meantime.
+	 */
+	private boolean awaitIdle(long started) throws InterruptedException {
+		while (true) {
+			if (generation.get() != started || !server.isRunning()) {
+				return false;
+			}
+			if (inFlight.getAsInt() == 0) {
+				return true;
+			}
+			Thread.sleep(IDLE_POLL_MS);
+		}
+	}
+}
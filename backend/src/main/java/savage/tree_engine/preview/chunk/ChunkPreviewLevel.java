@@ -77,6 +77,8 @@ public final class ChunkPreviewLevel implements WorldGenLevel {
 	private final java.util.Set<Long> rescan = new java.util.HashSet<>();
 	private final RandomSource random;
 	private final long seed;
+	/** Non-null while one feature's layer is being recorded. */
+	private DecorationLayers.Recorder recorder;
 
 	public ChunkPreviewLevel(
 		MinecraftServer server, RegistryAccess registries,
@@ -197,6 +199,36 @@ public final class ChunkPreviewLevel implements WorldGenLevel {
 		return lowest == Integer.MAX_VALUE ? snapshot.minY() : lowest;
 	}
 
+	// --- decoration layers --------------------------------------------
+
+	/**
+	 * Starts recording what the next feature reads and writes. Recording is off
+	 * the rest of the time, so a preview that is not reusing layers pays one
+	 * null check per access and nothing more.
+	 */
+	void beginLayer() {
+		recorder = new DecorationLayers.Recorder();
+	}
+
+	DecorationLayers.Layer endLayer() {
+		DecorationLayers.Layer layer = recorder.finish();
+		recorder = null;
+		return layer;
+	}
+
+	/**
+	 * Re-applies a recorded feature's writes, in their original order and
+	 * through {@link #setBlock}, so the column tops come out exactly as though
+	 * the feature had run.
+	 */
+	void replay(DecorationLayers.Layer layer) {
+		long[] positions = layer.positions();
+		BlockState[] states = layer.states();
+		for (int i = 0; i < positions.length; i++) {
+			setBlock(BlockPos.of(positions[i]), states[i], 3, 512);
+		}
+	}
+
 	private TerrainSnapshot snapshotFor(BlockPos pos) {
 		return terrain.get(ChunkPos.pack(pos.getX() >> 4, pos.getZ() >> 4));
 	}
@@ -209,6 +241,9 @@ public final class ChunkPreviewLevel implements WorldGenLevel {
 		// chunks (a tree on the border). Those writes are accepted and
 		// reported; the renderer can clip them if it wants.
 		placed.put(pos.immutable(), state);
+		if (recorder != null) {
+			recorder.write(pos, state);
+		}
 
 		// Keep the column tops that getHeight reads in step with the write.
 		long column = columnKey(pos.getX(), pos.getZ());
@@ -248,6 +283,9 @@ public final class ChunkPreviewLevel implements WorldGenLevel {
 
 	@Override
 	public BlockState getBlockState(BlockPos pos) {
+		if (recorder != null) {
+			recorder.read(pos);
+		}
 		BlockState written = placed.get(pos);
 		if (written != null) {
 			return written;
@@ -296,6 +334,9 @@ public final class ChunkPreviewLevel implements WorldGenLevel {
 	 */
 	@Override
 	public int getHeight(Heightmap.Types type, int x, int z) {
+		if (recorder != null) {
+			recorder.readColumn(x, z);
+		}
 		TerrainSnapshot snapshot = terrain.get(ChunkPos.pack(x >> 4, z >> 4));
 		if (snapshot == null) {
 			return getMinY();
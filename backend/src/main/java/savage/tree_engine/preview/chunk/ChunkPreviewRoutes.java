@@ -1,44 +1,115 @@
 package savage.tree_engine.preview.chunk;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.sun.net.httpserver.HttpExchange;
 import net.minecraft.core.RegistryAccess;
 import net.minecraft.server.MinecraftServer;
+import net.minecraft.world.level.ChunkPos;
 import savage.tree_engine.api.ApiException;
 import savage.tree_engine.api.ApiServer;
 import savage.tree_engine.api.Http;
+import savage.tree_engine.api.Lane;
+import savage.tree_engine.api.MemoryBudget;
+import savage.tree_engine.api.Query;
 import savage.tree_engine.datapack.SessionCache;
+import savage.tree_engine.jobs.Job;
+import savage.tree_engine.jobs.JobRoutes;
+import savage.tree_engine.jobs.Supersession;
+import savage.tree_engine.preview.BlockDto;
 import savage.tree_engine.preview.BlockFlagsDto;
+import savage.tree_engine.preview.PreviewResults;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * {@code POST /v1/preview/chunk} - generate real terrain decorated with the
  * session's datapack features.
+ *
+ * <p>{@code POST /v1/preview/chunk/compare} previews an area with and
+ * without the session's datapack over a single terrain pass.
+ *
+ * <p>The same previews are also served one chunk at a time as tiles:
+ * {@code POST /v1/preview/chunk/tiles} names the tiles for an area, computing
+ * any not yet held in one pass, and {@code GET /v1/preview/chunk/tile/...}
+ * fetches one. A tile's URL spells out everything that decides its content,
+ * so the same URL always means the same bytes and can be cached forever.
+ *
+ * <p>Previews and comparisons can also be submitted as the
+ * {@code preview/chunk} and {@code preview/chunk/compare} jobs, which report
+ * chunks decorated as they go; see {@link JobRoutes}. Either way a request
+ * may carry a {@code supersede} key and a {@code deadlineMs}; see
+ * {@link Supersession}. Each reserves its estimated memory before it
+ * starts, and is held back or refused with a 429 while there is not enough
+ * free; see {@link MemoryBudget}.
  */
 public final class ChunkPreviewRoutes {
+	private static final String TILE_PREFIX = "/v1/preview/chunk/tile/";
+
+	/** Nothing a tile URL names can change, so nothing needs revalidating. */
+	private static final String TILE_CACHE_CONTROL = "private, max-age=31536000, immutable";
+
+	/** Stands in for a session id in tile URLs when there is no datapack. */
+	private static final String VANILLA = "vanilla";
+
 	private final MinecraftServer server;
 	private final SessionCache sessions;
 	private final ChunkPreviewer previewer;
+	private final PreviewResults results = new PreviewResults();
+	private final TileCache tiles;
+	private final Supersession supersession;
+	private final MemoryBudget memory;
 	private final Gson gson;
 	private final String colormapsDir;
 
 	public ChunkPreviewRoutes(
-		MinecraftServer server, SessionCache sessions, Gson gson, String colormapsDir) {
+		MinecraftServer server, SessionCache sessions, ChunkPreviewer previewer, TileCache tiles,
+		Supersession supersession, MemoryBudget memory, Gson gson, String colormapsDir) {
 		this.server = server;
 		this.sessions = sessions;
-		this.previewer = new ChunkPreviewer(server);
+		this.previewer = previewer;
+		this.tiles = tiles;
+		this.supersession = supersession;
+		this.memory = memory;
 		this.gson = gson;
 		this.colormapsDir = colormapsDir;
 	}
 
-	public void register(ApiServer api) {
-		api.route("/v1/preview/chunk", this::handle);
+	public void register(ApiServer api, JobRoutes jobs) {
+		api.route("/v1/preview/chunk", Lane.BULK, this::handle);
+		api.route("/v1/preview/chunk/compare", Lane.BULK, this::handleCompare);
+		api.route("/v1/preview/chunk/tiles", Lane.BULK, this::handleTiles);
+		// A held tile is a lookup, and a missing one is a single chunk.
+		api.route(TILE_PREFIX, Lane.INTERACTIVE, this::handleTile);
+		jobs.kind("preview/chunk", Lane.BULK, this::preparePreview);
+		jobs.kind("preview/chunk/compare", Lane.BULK, this::prepareCompare);
 	}
 
 	private void handle(HttpExchange exchange) throws Exception {
 		Http.require(exchange, "POST");
+		JsonObject response = preparePreview(exchange).run(Job.Progress.NONE);
+
+		// The last phase the preview timings cannot see, since it is what turns
+		// them into a response. Logged rather than returned for the obvious
+		// reason: the number is not known until the body is already built.
+		long tSerialize = System.nanoTime();
+		String json = gson.toJson(response);
+		ApiServer.LOGGER.info(
+			"Chunk preview response: {} blocks, {} KB of JSON, serialised in {}ms",
+			response.get("blockCount").getAsInt(), json.length() / 1024,
+			(System.nanoTime() - tSerialize) / 1_000_000L);
 
+		Http.sendJson(exchange, 200, json);
+	}
+
+	private Job.Work preparePreview(HttpExchange exchange) throws Exception {
 		JsonElement body = Http.readJson(exchange);
 		if (!body.isJsonObject()) {
 			throw ApiException.badRequest("Request body must be a JSON object");
@@ -52,11 +123,28 @@ public final class ChunkPreviewRoutes {
 
 		// Unlike single-tree previews a session is the whole point here:
 		// without a datapack this would just render vanilla.
-		RegistryAccess registries;
 		String sessionId = string(request, "sessionId");
-		registries = sessionId != null
+		RegistryAccess registries = sessionId != null
 			? sessions.require(sessionId).registries()
 			: server.registryAccess();
+		long span = chunkSpan(request);
+		long estimate = ChunkPreviewer.estimateBytes(span * span, 1, fullChunk(request),
+			intOrNull(request, "minY"), intOrNull(request, "maxY"));
+		// Claimed only once the request is known to be good: a bad one must
+		// not cancel the preview it would have replaced.
+		Supersession.Ticket ticket =
+			supersession.claim(string(request, "supersede"), intOrNull(request, "deadlineMs"));
+		return ticket.guard(progress -> {
+			// Held until the response tree is built, which is the largest part.
+			try (MemoryBudget.Reservation reserved =
+				memory.reserve("chunk preview", estimate, progress::checkCancelled)) {
+				return preview(request, registries, sessionId != null, progress);
+			}
+		});
+	}
+
+	private JsonObject preview(
+		JsonObject request, RegistryAccess registries, boolean datapackApplied, Job.Progress progress) {
 
 		ChunkPreviewer.Result result = previewer.preview(
 			registries,
@@ -64,17 +152,18 @@ public final class ChunkPreviewRoutes {
 			intOr(request, "chunkZ", 0),
 			chunkSpan(request),
 			request.has("seed") ? request.get("seed").getAsLong() : 0L,
-			!request.has("decoratedOnly") || !request.get("decoratedOnly").getAsBoolean(),
+			fullChunk(request),
 			intOrNull(request, "minY"),
-			intOrNull(request, "maxY"));
+			intOrNull(request, "maxY"),
+			progress);
 
 		JsonObject response = new JsonObject();
-		response.add("blocks", gson.toJsonTree(result.blocks()));
-		response.add("blockFlags", gson.toJsonTree(BlockFlagsDto.forBlocks(result.blocks())));
-		response.addProperty("blockCount", result.blocks().size());
+		// Terrain under an edited tree does not change between previews, so
+		// quoting the last resultToken skips resending all of it.
+		results.write(response, gson, result.blocks(), string(request, "since"));
 		response.addProperty("chunkCount", result.chunkCount());
 		response.addProperty("decoratedCount", result.decoratedCount());
-		response.addProperty("datapackApplied", sessionId != null);
+		response.addProperty("datapackApplied", datapackApplied);
 		// Where the server's time actually went, so a slow preview can be
 		// attributed rather than guessed at.
 		response.add("timings", gson.toJsonTree(result.timings()));
@@ -86,17 +175,332 @@ public final class ChunkPreviewRoutes {
 		// without guessing where the ground is.
 		response.addProperty("minY", result.minY());
 		response.addProperty("maxY", result.maxY());
+		return response;
+	}
 
-		// The last phase the preview timings cannot see, since it is what turns
-		// them into a response. Logged rather than returned for the obvious
-		// reason: the number is not known until the body is already built.
-		long tSerialize = System.nanoTime();
-		String json = gson.toJson(response);
-		ApiServer.LOGGER.info(
-			"Chunk preview response: {} blocks, {} KB of JSON, serialised in {}ms",
-			result.blocks().size(), json.length() / 1024, (System.nanoTime() - tSerialize) / 1_000_000L);
+	/**
+	 * The same area decorated by vanilla and by the session, over one terrain
+	 * pass. {@code output} picks the shape: {@code diff} (the default) sends
+	 * only what the datapack changed relative to vanilla, {@code both} sends
+	 * each side in full.
+	 */
+	private void handleCompare(HttpExchange exchange) throws Exception {
+		Http.require(exchange, "POST");
+		Http.sendJson(exchange, 200, gson.toJson(prepareCompare(exchange).run(Job.Progress.NONE)));
+	}
 
-		Http.sendJson(exchange, 200, json);
+	private Job.Work prepareCompare(HttpExchange exchange) throws Exception {
+		JsonElement body = Http.readJson(exchange);
+		if (!body.isJsonObject()) {
+			throw ApiException.badRequest("Request body must be a JSON object");
+		}
+		JsonObject request = body.getAsJsonObject();
+
+		String output = string(request, "output");
+		boolean both;
+		if (output == null || output.equals("diff")) {
+			both = false;
+		} else if (output.equals("both")) {
+			both = true;
+		} else {
+			throw ApiException.badRequest("output must be \"diff\" or \"both\"");
+		}
+
+		Colormaps.ensureLoaded(colormapsDir);
+		// Comparing vanilla against itself is not a question worth a request.
+		RegistryAccess registries = sessions.require(string(request, "sessionId")).registries();
+		long span = chunkSpan(request);
+		long estimate = ChunkPreviewer.estimateBytes(span * span, 2, fullChunk(request),
+			intOrNull(request, "minY"), intOrNull(request, "maxY"));
+		Supersession.Ticket ticket =
+			supersession.claim(string(request, "supersede"), intOrNull(request, "deadlineMs"));
+		return ticket.guard(progress -> {
+			try (MemoryBudget.Reservation reserved =
+				memory.reserve("chunk comparison", estimate, progress::checkCancelled)) {
+				return compare(request, registries, both, progress);
+			}
+		});
+	}
+
+	private JsonObject compare(
+		JsonObject request, RegistryAccess registries, boolean both, Job.Progress progress) {
+
+		ChunkPreviewer.Comparison comparison = previewer.compare(
+			registries,
+			intOr(request, "chunkX", 0),
+			intOr(request, "chunkZ", 0),
+			chunkSpan(request),
+			request.has("seed") ? request.get("seed").getAsLong() : 0L,
+			fullChunk(request),
+			intOrNull(request, "minY"),
+			intOrNull(request, "maxY"),
+			progress);
+		ChunkPreviewer.Result vanilla = comparison.vanilla();
+		ChunkPreviewer.Result datapack = comparison.datapack();
+
+		JsonObject response = new JsonObject();
+		if (both) {
+			response.add("vanilla", side(vanilla));
+			response.add("datapack", side(datapack));
+		} else {
+			PreviewResults.Delta diff =
+				PreviewResults.Delta.between(null, vanilla.blocks(), datapack.blocks());
+			response.add("diff", gson.toJsonTree(diff));
+			List<BlockDto> fresh = new ArrayList<>(diff.added().size() + diff.changed().size());
+			fresh.addAll(diff.added());
+			fresh.addAll(diff.changed());
+			response.add("blockFlags", gson.toJsonTree(BlockFlagsDto.forBlocks(fresh)));
+			response.addProperty("vanillaBlockCount", vanilla.blocks().size());
+			response.addProperty("datapackBlockCount", datapack.blocks().size());
+		}
+		response.addProperty("chunkCount", datapack.chunkCount());
+		response.addProperty("datapackApplied", true);
+		// Terrain is shared, so so are its biomes.
+		response.add("biomes", gson.toJsonTree(datapack.biomes()));
+		response.addProperty("minY", Math.min(vanilla.minY(), datapack.minY()));
+		response.addProperty("maxY", Math.max(vanilla.maxY(), datapack.maxY()));
+		JsonObject timings = new JsonObject();
+		timings.add("vanilla", gson.toJsonTree(vanilla.timings()));
+		timings.add("datapack", gson.toJsonTree(datapack.timings()));
+		response.add("timings", timings);
+		return response;
+	}
+
+	/** One side of a comparison, shaped like the body of a full preview. */
+	private JsonObject side(ChunkPreviewer.Result result) {
+		JsonObject side = new JsonObject();
+		side.add("blocks", gson.toJsonTree(result.blocks()));
+		side.add("blockFlags", gson.toJsonTree(BlockFlagsDto.forBlocks(result.blocks())));
+		side.addProperty("blockCount", result.blocks().size());
+		side.addProperty("decoratedCount", result.decoratedCount());
+		side.addProperty("minY", result.minY());
+		side.addProperty("maxY", result.maxY());
+		return side;
+	}
+
+	/**
+	 * Names the tiles covering an area, computing those not already held.
+	 *
+	 * Takes the same {@code chunkX}/{@code chunkZ}/{@code size} as a preview,
+	 * or an explicit {@code chunks} list of {@code [x, z]} pairs for a client
+	 * that already has most of a view and only wants the edge it scrolled to.
+	 * Every missing tile is generated in a single terrain pass, which is the
+	 * point of asking here rather than fetching each URL cold.
+	 */
+	private void handleTiles(HttpExchange exchange) throws Exception {
+		Http.require(exchange, "POST");
+
+		JsonElement body = Http.readJson(exchange);
+		if (!body.isJsonObject()) {
+			throw ApiException.badRequest("Request body must be a JSON object");
+		}
+		JsonObject request = body.getAsJsonObject();
+
+		String sessionId = string(request, "sessionId");
+		TileSpec spec = new TileSpec(
+			sessionId != null ? sessionId : VANILLA,
+			request.has("seed") ? request.get("seed").getAsLong() : 0L,
+			request.has("decoratedOnly") && request.get("decoratedOnly").getAsBoolean(),
+			intOrNull(request, "minY"),
+			intOrNull(request, "maxY"));
+
+		List<ChunkPos> chunks = request.has("chunks")
+			? chunkList(request.get("chunks"))
+			: grid(intOr(request, "chunkX", 0), intOr(request, "chunkZ", 0), chunkSpan(request));
+
+		Map<ChunkPos, TileCache.Tile> found = new LinkedHashMap<>();
+		List<ChunkPos> missing = new ArrayList<>();
+		for (ChunkPos pos : chunks) {
+			TileCache.Tile tile = tiles.get(spec.key(worldSeed(), pos));
+			if (tile != null) {
+				found.put(pos, tile);
+			} else {
+				missing.add(pos);
+			}
+		}
+		found.putAll(compute(spec, missing));
+
+		JsonArray list = new JsonArray();
+		for (ChunkPos pos : chunks) {
+			JsonObject entry = new JsonObject();
+			entry.addProperty("chunkX", pos.x());
+			entry.addProperty("chunkZ", pos.z());
+			entry.addProperty("url", spec.url(worldSeed(), pos));
+			entry.addProperty("etag", found.get(pos).etag());
+			list.add(entry);
+		}
+
+		JsonObject response = new JsonObject();
+		response.add("tiles", list);
+		response.addProperty("computed", missing.size());
+		response.addProperty("cached", chunks.size() - missing.size());
+		response.addProperty("datapackApplied", sessionId != null);
+		Http.sendJson(exchange, 200, gson.toJson(response));
+	}
+
+	/**
+	 * {@code GET /v1/preview/chunk/tile/{world}/{session}/{seed}/{x}/{z}}, with
+	 * {@code minY}, {@code maxY} and {@code decoratedOnly} as query parameters.
+	 *
+	 * A held tile is served without touching the session at all, so a tile
+	 * outlives the session that produced it for as long as the cache keeps it.
+	 */
+	private void handleTile(HttpExchange exchange) throws Exception {
+		Http.require(exchange, "GET");
+
+		String[] parts = Http.tail(exchange, TILE_PREFIX).split("/");
+		if (parts.length != 5) {
+			throw ApiException.notFound(
+				"Tile paths are /{world}/{session}/{seed}/{chunkX}/{chunkZ}");
+		}
+		Query query = Query.of(exchange.getRequestURI().getRawQuery());
+		TileSpec spec;
+		long world;
+		ChunkPos pos;
+		try {
+			world = Long.parseUnsignedLong(parts[0], 16);
+			spec = new TileSpec(
+				parts[1],
+				Long.parseLong(parts[2]),
+				Boolean.parseBoolean(query.get("decoratedOnly")),
+				query.get("minY") != null ? Integer.valueOf(query.get("minY")) : null,
+				query.get("maxY") != null ? Integer.valueOf(query.get("maxY")) : null);
+			pos = new ChunkPos(Integer.parseInt(parts[3]), Integer.parseInt(parts[4]));
+		} catch (NumberFormatException e) {
+			throw ApiException.badRequest("Malformed tile path", e.getMessage());
+		}
+		// Terrain is the running world's, so a URL minted before the launcher
+		// switched worlds describes tiles this server cannot produce.
+		if (world != worldSeed()) {
+			throw ApiException.notFound("Tile belongs to a different world");
+		}
+
+		TileCache.Tile tile = tiles.get(spec.key(world, pos));
+		if (tile == null) {
+			tile = compute(spec, List.of(pos)).get(pos);
+		}
+
+		exchange.getResponseHeaders().set("ETag", tile.etag());
+		exchange.getResponseHeaders().set("Cache-Control", TILE_CACHE_CONTROL);
+		if (tile.etag().equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+			Http.sendNotModified(exchange);
+			return;
+		}
+		Http.sendJson(exchange, 200, tile.body());
+	}
+
+	/** Generates, encodes and caches the given tiles in one terrain pass. */
+	private Map<ChunkPos, TileCache.Tile> compute(TileSpec spec, List<ChunkPos> chunks) {
+		if (chunks.isEmpty()) {
+			return Map.of();
+		}
+		Colormaps.ensureLoaded(colormapsDir);
+		RegistryAccess registries = VANILLA.equals(spec.session())
+			? server.registryAccess()
+			: sessions.require(spec.session()).registries();
+
+		long estimate = ChunkPreviewer.estimateBytes(
+			chunks.size(), 1, !spec.decoratedOnly(), spec.minY(), spec.maxY());
+		try (MemoryBudget.Reservation reserved = memory.reserve("tile batch", estimate)) {
+			Map<Long, ChunkPreviewer.Result> rendered = previewer.tiles(
+				registries, chunks, spec.seed(), !spec.decoratedOnly(), spec.minY(), spec.maxY());
+
+			long world = worldSeed();
+			Map<ChunkPos, TileCache.Tile> out = new LinkedHashMap<>();
+			for (ChunkPos pos : chunks) {
+				ChunkPreviewer.Result result = rendered.get(ChunkPos.pack(pos.x(), pos.z()));
+				byte[] json = gson.toJson(tileBody(pos, result, spec)).getBytes(StandardCharsets.UTF_8);
+				out.put(pos, tiles.put(spec.key(world, pos), json));
+			}
+			return out;
+		}
+	}
+
+	/**
+	 * A tile is a one-chunk preview minus anything that varies between runs
+	 * of it: no timings and no result token, since the bytes are what the
+	 * ETag promises.
+	 */
+	private JsonObject tileBody(ChunkPos pos, ChunkPreviewer.Result result, TileSpec spec) {
+		JsonObject body = new JsonObject();
+		body.addProperty("chunkX", pos.x());
+		body.addProperty("chunkZ", pos.z());
+		body.add("blocks", gson.toJsonTree(result.blocks()));
+		body.add("blockFlags", gson.toJsonTree(BlockFlagsDto.forBlocks(result.blocks())));
+		body.addProperty("blockCount", result.blocks().size());
+		body.addProperty("decoratedCount", result.decoratedCount());
+		body.addProperty("datapackApplied", !VANILLA.equals(spec.session()));
+		body.add("biomes", gson.toJsonTree(result.biomes()));
+		body.addProperty("minY", result.minY());
+		body.addProperty("maxY", result.maxY());
+		return body;
+	}
+
+	private long worldSeed() {
+		return server.overworld().getSeed();
+	}
+
+	private static List<ChunkPos> grid(int centerX, int centerZ, int size) {
+		if (size < 1) {
+			throw ApiException.badRequest("size must be at least 1 chunk");
+		}
+		// Laid out exactly as a preview of the same size would be.
+		int before = (size - 1) / 2;
+		int after = size / 2;
+		List<ChunkPos> out = new ArrayList<>();
+		for (int z = centerZ - before; z <= centerZ + after; z++) {
+			for (int x = centerX - before; x <= centerX + after; x++) {
+				out.add(new ChunkPos(x, z));
+			}
+		}
+		return out;
+	}
+
+	private static List<ChunkPos> chunkList(JsonElement element) {
+		if (!element.isJsonArray()) {
+			throw ApiException.badRequest("chunks must be an array of [x, z] pairs");
+		}
+		List<ChunkPos> out = new ArrayList<>();
+		for (JsonElement item : element.getAsJsonArray()) {
+			if (!item.isJsonArray() || item.getAsJsonArray().size() != 2) {
+				throw ApiException.badRequest("chunks must be an array of [x, z] pairs");
+			}
+			ChunkPos pos = new ChunkPos(
+				item.getAsJsonArray().get(0).getAsInt(), item.getAsJsonArray().get(1).getAsInt());
+			if (!out.contains(pos)) {
+				out.add(pos);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Everything about a tile except where it is and which world it is in.
+	 *
+	 * @param session a session id, or {@link #VANILLA}
+	 */
+	private record TileSpec(String session, long seed, boolean decoratedOnly, Integer minY, Integer maxY) {
+
+		TileCache.Key key(long world, ChunkPos pos) {
+			return new TileCache.Key(world, session, pos.x(), pos.z(), seed, minY, maxY, decoratedOnly);
+		}
+
+		String url(long world, ChunkPos pos) {
+			StringBuilder url = new StringBuilder(TILE_PREFIX)
+				.append(HexFormat.of().toHexDigits(world)).append('/')
+				.append(session).append('/')
+				.append(seed).append('/')
+				.append(pos.x()).append('/')
+				.append(pos.z())
+				.append("?decoratedOnly=").append(decoratedOnly);
+			if (minY != null) {
+				url.append("&minY=").append(minY);
+			}
+			if (maxY != null) {
+				url.append("&maxY=").append(maxY);
+			}
+			return url.toString();
+		}
 	}
 
 	/**
@@ -115,6 +519,11 @@ public final class ChunkPreviewRoutes {
 		return intOr(request, "radius", 0) * 2 + 1;
 	}
 
+	/** Whether a preview wants the terrain as well as what decorated it. */
+	private static boolean fullChunk(JsonObject request) {
+		return !request.has("decoratedOnly") || !request.get("decoratedOnly").getAsBoolean();
+	}
+
 	private static Integer intOrNull(JsonObject object, String key) {
 		JsonElement value = object.get(key);
 		return value == null || value.isJsonNull() ? null : value.getAsInt();
@@ -13,11 +13,19 @@ import net.minecraft.world.level.chunk.status.ChunkStatus;
 import net.minecraft.world.level.dimension.LevelStem;
 import savage.tree_engine.api.ApiException;
 import savage.tree_engine.api.ApiServer;
+import savage.tree_engine.api.CpuPool;
+import savage.tree_engine.jobs.Job;
 import savage.tree_engine.preview.BlockDto;
 
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
 
 /**
  * Generates what a chunk would actually look like in game with a datapack
@@ -53,9 +61,23 @@ public final class ChunkPreviewer {
 	private static final int MARGIN = 1;
 
 	private final MinecraftServer server;
+	private final DecorationLayers layers = new DecorationLayers();
+	private final TerrainCache terrainCache = new TerrainCache();
+	private final ChunkPrefetcher prefetcher;
+	private final CpuPool cpu;
 
-	public ChunkPreviewer(MinecraftServer server) {
+	/**
+	 * @param prefetchRing chunks of terrain to generate ahead around each
+	 *                     preview; 0 disables it. See {@link ChunkPrefetcher}.
+	 * @param inFlight     how many API requests are being handled, so
+	 *                     prefetching only runs while there are none
+	 * @param cpu          where decoration and emitting run; waiting for
+	 *                     terrain stays on the caller's thread
+	 */
+	public ChunkPreviewer(MinecraftServer server, int prefetchRing, IntSupplier inFlight, CpuPool cpu) {
 		this.server = server;
+		this.cpu = cpu;
+		this.prefetcher = new ChunkPrefetcher(server, this, terrainCache, prefetchRing, inFlight);
 	}
 
 	/**
@@ -73,29 +95,257 @@ public final class ChunkPreviewer {
 	/** Headroom above the tallest thing, so nothing is clipped at the top. */
 	private static final int HEADROOM = 2;
 
+	/** A snapshot's block array: one reference per block of a 384-high chunk. */
+	private static final long SNAPSHOT_BYTES = 16L * 16 * 384 * Integer.BYTES;
+	/**
+	 * A preview block at its peak: the BlockDto, its JSON tree, and its share
+	 * of the String and byte array serialised from that.
+	 */
+	private static final long BYTES_PER_BLOCK = 400;
+	/** Levels an automatic window usually spans, from the floor to above the trees. */
+	private static final int TYPICAL_WINDOW = 80;
+	/** What decoration alone adds to a chunk, generously. */
+	private static final int DECORATED_BLOCKS_PER_CHUNK = 1024;
+
+	/**
+	 * Roughly the most heap previewing {@code chunks} chunks holds at once,
+	 * worked out before anything is generated so that it can be reserved
+	 * first; see {@link savage.tree_engine.api.MemoryBudget}.
+	 *
+	 * <p>Terrain is counted twice over to cover the margin. A full chunk is
+	 * taken to be half solid across its window, which is about what ground
+	 * with trees on it comes to; an automatic window is taken at its usual
+	 * height. Oversized requests are counted at the limit, since they will be
+	 * refused before they cost anything.
+	 *
+	 * @param sides 2 for a comparison, which decorates and emits everything twice
+	 */
+	public static long estimateBytes(
+		long chunks, int sides, boolean fullChunk, Integer requestedMinY, Integer requestedMaxY) {
+
+		long count = Math.clamp(chunks, 1, MAX_CHUNKS);
+		int window = requestedMinY != null && requestedMaxY != null
+			? Math.max(1, requestedMaxY - requestedMinY + 1)
+			: TYPICAL_WINDOW;
+		long blocksPerChunk = fullChunk ? 16L * 16 * window / 2 : DECORATED_BLOCKS_PER_CHUNK;
+		return count * 2 * SNAPSHOT_BYTES + sides * count * blocksPerChunk * BYTES_PER_BLOCK;
+	}
 
+	/**
+	 * @param progress told of each chunk decorated, and asked between chunks
+	 *                 whether to carry on
+	 */
 	public Result preview(
 		RegistryAccess registries, int centerX, int centerZ, int size,
-		long seed, boolean fullChunk, Integer requestedMinY, Integer requestedMaxY) {
+		long seed, boolean fullChunk, Integer requestedMinY, Integer requestedMaxY,
+		Job.Progress progress) {
+
+		Square area = Square.around(centerX, centerZ, size);
+		int minChunkX = area.minChunkX();
+		int maxChunkX = area.maxChunkX();
+		int minChunkZ = area.minChunkZ();
+		int maxChunkZ = area.maxChunkZ();
+
+		Terrain terrain = terrain(minChunkX, maxChunkX, minChunkZ, maxChunkZ, progress);
+		Result result = cpu.call(() -> render(
+			registries, terrain.snapshots(), minChunkX, maxChunkX, minChunkZ, maxChunkZ,
+			centerX, centerZ, seed, fullChunk, requestedMinY, requestedMaxY, terrain,
+			new ChunkProgress(progress, size * size)));
+		ApiServer.LOGGER.info(
+			"Chunk preview {}x{} at {},{}: {} blocks, {}", size, size, centerX, centerZ,
+			result.blocks().size(), result.timings());
+		return result;
+	}
+
+	/**
+	 * Previews one area twice - decorated by the running world's registries
+	 * and by a session's - over a single terrain pass.
+	 *
+	 * <p>"What did my datapack change here?" otherwise takes two previews that
+	 * each generate and snapshot the same ground. Here terrain is taken once
+	 * and the two decorations run side by side on levels of their own, so the
+	 * whole costs about one preview plus a second decoration, and the wall
+	 * clock barely more than one.
+	 *
+	 * <p>Both are cut to the same window, which an automatic ceiling would
+	 * otherwise fit to each separately; a block would then appear to differ
+	 * merely because one side was cut lower.
+	 *
+	 * <p>The two sides record their decoration layers apart. They cover the
+	 * same region with the same seed, and would otherwise replace each
+	 * other's layers on every comparison, leaving neither anything to replay.
+	 *
+	 * @param progress see {@link #preview}; each chunk counts once per side
+	 */
+	public Comparison compare(
+		RegistryAccess session, int centerX, int centerZ, int size,
+		long seed, boolean fullChunk, Integer requestedMinY, Integer requestedMaxY,
+		Job.Progress progress) {
+
+		Square area = Square.around(centerX, centerZ, size);
+		Terrain terrain = terrain(
+			area.minChunkX(), area.maxChunkX(), area.minChunkZ(), area.maxChunkZ(), progress);
+
+		ChunkProgress chunks = new ChunkProgress(progress, 2 * size * size);
+		CompletableFuture<Decorated> worldSide = CompletableFuture.supplyAsync(() -> decorate(
+			server.registryAccess(), terrain.snapshots(),
+			area.minChunkX(), area.maxChunkX(), area.minChunkZ(), area.maxChunkZ(), seed, chunks),
+			cpu.executor());
+		Decorated sessionSide = cpu.call(() -> decorate(
+			session, terrain.snapshots(),
+			area.minChunkX(), area.maxChunkX(), area.minChunkZ(), area.maxChunkZ(), seed, chunks));
+		Decorated world;
+		try {
+			world = worldSide.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException cause) {
+				throw cause;
+			}
+			throw e;
+		}
 
-		if (size < 1) {
-			throw ApiException.badRequest("size must be at least 1 chunk");
+		int floorY = requestedMinY != null ? requestedMinY : DEFAULT_FLOOR_Y;
+		int ceilingY = requestedMaxY != null
+			? requestedMaxY
+			: Math.max(world.highestOccupied(), sessionSide.highestOccupied()) + HEADROOM;
+
+		Comparison comparison = cpu.call(() -> new Comparison(
+			emit(world, area.minChunkX(), area.maxChunkX(), area.minChunkZ(), area.maxChunkZ(),
+				centerX, centerZ, fullChunk, floorY, ceilingY, terrain),
+			emit(sessionSide, area.minChunkX(), area.maxChunkX(), area.minChunkZ(), area.maxChunkZ(),
+				centerX, centerZ, fullChunk, floorY, ceilingY, terrain)));
+		ApiServer.LOGGER.info(
+			"Chunk comparison {}x{} at {},{}: vanilla {} / datapack {}", size, size, centerX, centerZ,
+			comparison.vanilla().timings(), comparison.datapack().timings());
+		return comparison;
+	}
+
+	/**
+	 * Previews each of {@code chunks} exactly as a one-chunk {@link #preview}
+	 * of it would, but generating and snapshotting their terrain in one pass.
+	 *
+	 * <p>This is what backs the tile cache. A tile has to mean the same thing
+	 * however it was produced - alone on a cache miss, or as one of a grid -
+	 * so each is decorated on its own level over just its own neighbourhood,
+	 * never over the whole grid: a tree in the next chunk over would otherwise
+	 * change what this tile contains depending on which request built it.
+	 *
+	 * @return results keyed by packed chunk position
+	 */
+	public Map<Long, Result> tiles(
+		RegistryAccess registries, List<ChunkPos> chunks, long seed, boolean fullChunk,
+		Integer requestedMinY, Integer requestedMaxY) {
+
+		if (chunks.isEmpty()) {
+			return Map.of();
 		}
-		if (size * size > MAX_CHUNKS) {
+		if (chunks.size() > MAX_CHUNKS) {
 			throw ApiException.badRequest(
-				"Requested " + (size * size) + " chunks; the limit is " + MAX_CHUNKS);
+				"Requested " + chunks.size() + " chunks; the limit is " + MAX_CHUNKS);
+		}
+		int minChunkX = Integer.MAX_VALUE;
+		int maxChunkX = Integer.MIN_VALUE;
+		int minChunkZ = Integer.MAX_VALUE;
+		int maxChunkZ = Integer.MIN_VALUE;
+		for (ChunkPos pos : chunks) {
+			minChunkX = Math.min(minChunkX, pos.x());
+			maxChunkX = Math.max(maxChunkX, pos.x());
+			minChunkZ = Math.min(minChunkZ, pos.z());
+			maxChunkZ = Math.max(maxChunkZ, pos.z());
+		}
+		// The bounding box is what gets generated, so a scattered handful of
+		// chunks is capped by the box it spans, not by how many were named.
+		long span = (long) (maxChunkX - minChunkX + 1) * (maxChunkZ - minChunkZ + 1);
+		if (span > MAX_CHUNKS) {
+			throw ApiException.badRequest(
+				"Requested chunks span " + span + " chunks; the limit is " + MAX_CHUNKS);
 		}
 
-		// A square of `size` chunks, centred on the requested one as closely as
-		// an even size allows: 1 -> just it, 2 -> it plus the +x/+z corner,
-		// 3 -> it and all eight neighbours.
-		int before = (size - 1) / 2;
-		int after = size / 2;
-		int minChunkX = centerX - before;
-		int maxChunkX = centerX + after;
-		int minChunkZ = centerZ - before;
-		int maxChunkZ = centerZ + after;
+		Terrain terrain = terrain(minChunkX, maxChunkX, minChunkZ, maxChunkZ, Job.Progress.NONE);
+
+		Map<Long, Result> out = cpu.call(() -> {
+			Map<Long, Result> rendered = new LinkedHashMap<>();
+			for (ChunkPos pos : chunks) {
+				List<TerrainSnapshot> neighbourhood = new ArrayList<>();
+				for (TerrainSnapshot snapshot : terrain.snapshots()) {
+					if (Math.abs(snapshot.pos().x() - pos.x()) <= MARGIN
+						&& Math.abs(snapshot.pos().z() - pos.z()) <= MARGIN) {
+						neighbourhood.add(snapshot);
+					}
+				}
+				rendered.put(ChunkPos.pack(pos.x(), pos.z()), render(
+					registries, neighbourhood, pos.x(), pos.x(), pos.z(), pos.z(),
+					pos.x(), pos.z(), seed, fullChunk, requestedMinY, requestedMaxY, terrain,
+					new ChunkProgress(Job.Progress.NONE, 1)));
+			}
+			return rendered;
+		});
+		ApiServer.LOGGER.info("Chunk tiles: {} rendered over {} chunks of terrain (generate={}ms copy={}ms)",
+			out.size(), terrain.snapshots().size(), terrain.generateMs(), terrain.copyMs());
+		return out;
+	}
+
+	/**
+	 * Snapshots the given chunks plus their margin, generating whichever are
+	 * not already cached, then leaves the ring around them to the prefetcher.
+	 */
+	private Terrain terrain(
+		int minChunkX, int maxChunkX, int minChunkZ, int maxChunkZ, Job.Progress progress) {
+		// Whatever was being fetched speculatively gives way to this.
+		prefetcher.cancel();
+
+		long tGenerate = System.nanoTime();
+		List<ChunkPos> box = new ArrayList<>();
+		for (int x = minChunkX - MARGIN; x <= maxChunkX + MARGIN; x++) {
+			for (int z = minChunkZ - MARGIN; z <= maxChunkZ + MARGIN; z++) {
+				box.add(new ChunkPos(x, z));
+			}
+		}
+
+		// Chunks already snapshotted - by an earlier preview of the same area,
+		// or ahead of time by the prefetcher - are taken as they are.
+		TerrainSnapshot[] snapshots = new TerrainSnapshot[box.size()];
+		List<ChunkPos> missing = new ArrayList<>();
+		for (int i = 0; i < box.size(); i++) {
+			snapshots[i] = terrainCache.take(box.get(i));
+			if (snapshots[i] == null) {
+				missing.add(box.get(i));
+			}
+		}
+
+		Generated generated = generate(missing, true, progress);
+		for (TerrainSnapshot snapshot : generated.snapshots()) {
+			terrainCache.put(snapshot, false);
+		}
+		Iterator<TerrainSnapshot> fresh = generated.snapshots().iterator();
+		for (int i = 0; i < snapshots.length; i++) {
+			if (snapshots[i] == null) {
+				snapshots[i] = fresh.next();
+			}
+		}
+		long generateMs = millisSince(tGenerate) - generated.copyMs();
+
+		prefetcher.around(
+			minChunkX - MARGIN, maxChunkX + MARGIN, minChunkZ - MARGIN, maxChunkZ + MARGIN);
+		return new Terrain(
+			List.of(snapshots), box.size() - missing.size(), generateMs, generated.copyMs());
+	}
 
+	/**
+	 * Generates the given chunks to SURFACE status and snapshots them, in the
+	 * order given.
+	 *
+	 * @param drive whether to drive the server thread until they are done,
+	 *              which is what a waiting user wants; without it generation
+	 *              only advances in the slack of each tick, which is what
+	 *              speculative work wants
+	 * @param progress asked while driving whether anyone still wants the
+	 *                 chunks; speculative work has its own way of stopping
+	 */
+	Generated generate(List<ChunkPos> chunks, boolean drive, Job.Progress progress) {
+		if (chunks.isEmpty()) {
+			return new Generated(List.of(), 0);
+		}
 		// Ask for every chunk at once, then wait for the lot.
 		//
 		// This must run off the server thread, and that is the whole point.
@@ -110,13 +360,10 @@ public final class ChunkPreviewer {
 		//
 		// Correctness does not depend on this: called on the server thread it
 		// still works, just serially, exactly as before.
-		long tGenerate = System.nanoTime();
 		ServerChunkCache chunkSource = server.overworld().getChunkSource();
 		List<CompletableFuture<ChunkResult<ChunkAccess>>> pending = new ArrayList<>();
-		for (int x = minChunkX - MARGIN; x <= maxChunkX + MARGIN; x++) {
-			for (int z = minChunkZ - MARGIN; z <= maxChunkZ + MARGIN; z++) {
-				pending.add(chunkSource.getChunkFuture(x, z, ChunkStatus.SURFACE, true));
-			}
+		for (ChunkPos pos : chunks) {
+			pending.add(chunkSource.getChunkFuture(pos.x(), pos.z(), ChunkStatus.SURFACE, true));
 		}
 
 		// Then drive the server thread to drain them, rather than just waiting.
@@ -131,7 +378,16 @@ public final class ChunkPreviewer {
 		// CPU allows.
 		CompletableFuture<Void> allDone =
 			CompletableFuture.allOf(pending.toArray(new CompletableFuture[0]));
-		server.submit(() -> server.managedBlock(allDone::isDone)).join();
+		if (drive) {
+			server.submit(() -> server.managedBlock(
+				() -> allDone.isDone() || progress.cancelled())).join();
+			// Giving up the wait gives up nothing else: the chunks go on to
+			// finish in the world's own chunk cache, where the preview that
+			// replaced this one is likely to want them anyway.
+			progress.checkCancelled();
+		} else {
+			allDone.join();
+		}
 
 		List<ChunkAccess> generated = new ArrayList<>(pending.size());
 		for (CompletableFuture<ChunkResult<ChunkAccess>> future : pending) {
@@ -144,8 +400,6 @@ public final class ChunkPreviewer {
 			generated.add(result.orElse(null));
 		}
 
-		long generateMs = millisSince(tGenerate);
-
 		// Copying reads live chunks, so it has to happen on the server thread.
 		// It is only an array copy now that generation is already done, so the
 		// game loop is held for a fraction of what it was. Decoration afterwards
@@ -158,7 +412,59 @@ public final class ChunkPreviewer {
 			}
 			return out;
 		}).join();
-		long copyMs = millisSince(tCopy);
+		return new Generated(all, millisSince(tCopy));
+	}
+
+	/** Stops background prefetching; called when the API stops. */
+	public void shutdown() {
+		prefetcher.shutdown();
+	}
+
+	/** Terrain cache and prefetch counters, for the health endpoint. */
+	public TerrainCache.Stats terrainStats() {
+		return terrainCache.stats(prefetcher.ring());
+	}
+
+	/**
+	 * Decorates the requested chunks over {@code all} and turns the result into
+	 * a preview. {@code all} must include the margin around the requested
+	 * chunks; anything further out is simply never read.
+	 */
+	private Result render(
+		RegistryAccess registries, List<TerrainSnapshot> all,
+		int minChunkX, int maxChunkX, int minChunkZ, int maxChunkZ, int centerX, int centerZ,
+		long seed, boolean fullChunk, Integer requestedMinY, Integer requestedMaxY, Terrain terrain,
+		ChunkProgress progress) {
+
+		Decorated decorated = decorate(
+			registries, all, minChunkX, maxChunkX, minChunkZ, maxChunkZ, seed, progress);
+
+		// The preview is cut at a flat height rather than fitted to each
+		// column. Earlier versions were cleverer about this - fitting a window
+		// to the surface, then a crust that followed it - and both produced
+		// artefacts on sloped ground that looked like missing terrain. A
+		// single honest cut reads as a cross-section. The floor is the only
+		// thing that decides what is in a preview; everything above it that
+		// generated is reported, and deciding what is visible is the renderer's
+		// job.
+		int floorY = requestedMinY != null ? requestedMinY : DEFAULT_FLOOR_Y;
+		int ceilingY = requestedMaxY != null
+			? requestedMaxY
+			: decorated.highestOccupied() + HEADROOM;
+
+		return emit(
+			decorated, minChunkX, maxChunkX, minChunkZ, maxChunkZ, centerX, centerZ,
+			fullChunk, floorY, ceilingY, terrain);
+	}
+
+	/**
+	 * Decorates the requested chunks on a level of their own. Nothing here
+	 * touches shared state but the layer cache, so two decorations of the same
+	 * terrain can run side by side.
+	 */
+	private Decorated decorate(
+		RegistryAccess registries, List<TerrainSnapshot> all,
+		int minChunkX, int maxChunkX, int minChunkZ, int maxChunkZ, long seed, ChunkProgress progress) {
 
 		// Only the chunks the caller asked for get decorated and returned;
 		// the margin exists purely so neighbour lookups resolve.
@@ -177,39 +483,41 @@ public final class ChunkPreviewer {
 		ChunkPreviewLevel level =
 			new ChunkPreviewLevel(server, registries, all, random, seed);
 
+		// Re-previewing the same region after an edit replays every feature
+		// the edit cannot have affected instead of running it again; see
+		// LayeredDecorator for what "cannot" means. An edit is a new session,
+		// so the region is not keyed by session - only by which side of a
+		// comparison it is, the server's registries or a pack's.
+		DecorationLayers.Region region = new DecorationLayers.Region(
+			registries == server.registryAccess(), minChunkX, minChunkZ, maxChunkX, maxChunkZ, seed);
+		LayeredDecorator decorator = new LayeredDecorator(generator, layers.previous(region));
 		for (TerrainSnapshot snapshot : requested) {
+			progress.progress().checkCancelled();
 			try {
-				generator.applyBiomeDecoration(
+				decorator.decorate(
 					level, snapshot.sourceChunk(), server.overworld().structureManager());
 			} catch (Exception e) {
 				throw ApiException.internal(
 					"Decoration failed for chunk " + snapshot.pos().x() + "," + snapshot.pos().z(), e);
 			}
+			progress.chunkDone();
+		}
+		DecorationLayers.Run recorded = decorator.recorded();
+		if (recorded != null) {
+			layers.store(region, recorded);
 		}
 
-		long decorateMs = millisSince(tDecorate);
+		return new Decorated(level, requested, millisSince(tDecorate), decorator.replayed(), decorator.run());
+	}
 
-		long tEmit = System.nanoTime();
+	/** Cuts a decorated level to the given window and turns it into a preview. */
+	private Result emit(
+		Decorated decorated, int minChunkX, int maxChunkX, int minChunkZ, int maxChunkZ,
+		int centerX, int centerZ, boolean fullChunk, int floorY, int ceilingY, Terrain terrain) {
 
-		// The preview is cut at a flat height rather than fitted to each
-		// column. Earlier versions were cleverer about this - fitting a window
-		// to the surface, then a crust that followed it - and both produced
-		// artefacts on sloped ground that looked like missing terrain. A
-		// single honest cut reads as a cross-section. The floor is the only
-		// thing that decides what is in a preview; everything above it that
-		// generated is reported, and deciding what is visible is the renderer's
-		// job.
-		int floorY = requestedMinY != null ? requestedMinY : DEFAULT_FLOOR_Y;
-		int ceilingY;
-		if (requestedMaxY != null) {
-			ceilingY = requestedMaxY;
-		} else {
-			int highest = Integer.MIN_VALUE;
-			for (TerrainSnapshot snapshot : requested) {
-				highest = Math.max(highest, level.highestOccupied(snapshot));
-			}
-			ceilingY = highest + HEADROOM;
-		}
+		long tEmit = System.nanoTime();
+		ChunkPreviewLevel level = decorated.level();
+		List<TerrainSnapshot> requested = decorated.requested();
 		if (ceilingY < floorY) {
 			ceilingY = floorY;
 		}
@@ -267,10 +575,8 @@ public final class ChunkPreviewer {
 		biomes.setCenter(level.surfaceBiome(centerX * 16 + 8, centerZ * 16 + 8));
 
 		Timings timings = new Timings(
-			generateMs, copyMs, decorateMs, millisSince(tEmit), generated.size());
-		ApiServer.LOGGER.info(
-			"Chunk preview {}x{} at {},{}: {} blocks, {}", size, size, centerX, centerZ,
-			blocks.size(), timings);
+			terrain.generateMs(), terrain.copyMs(), decorated.decorateMs(), millisSince(tEmit),
+			terrain.snapshots().size(), terrain.cached(), decorated.replayed(), decorated.run());
 
 		return new Result(
 			blocks, requested.size(), level.decorated().size(), minY, maxY,
@@ -305,6 +611,69 @@ public final class ChunkPreviewer {
 		return new SessionGenerator(world, registries);
 	}
 
+	/**
+	 * Snapshotted terrain and what it cost. When several results are rendered
+	 * from one pass, each reports the shared cost.
+	 *
+	 * @param cached how many of the snapshots were already held
+	 */
+	private record Terrain(List<TerrainSnapshot> snapshots, int cached, long generateMs, long copyMs) {
+	}
+
+	/**
+	 * A square of chunks around a centre, as a preview of {@code size} covers
+	 * it: 1 is just the centre, 2 adds the +x/+z corner, 3 is the centre and
+	 * all eight neighbours.
+	 */
+	private record Square(int minChunkX, int maxChunkX, int minChunkZ, int maxChunkZ) {
+
+		static Square around(int centerX, int centerZ, int size) {
+			if (size < 1) {
+				throw ApiException.badRequest("size must be at least 1 chunk");
+			}
+			if (size * size > MAX_CHUNKS) {
+				throw ApiException.badRequest(
+					"Requested " + (size * size) + " chunks; the limit is " + MAX_CHUNKS);
+			}
+			int before = (size - 1) / 2;
+			int after = size / 2;
+			return new Square(centerX - before, centerX + after, centerZ - before, centerZ + after);
+		}
+	}
+
+	/** A decorated level, before it is cut to a window. */
+	private record Decorated(
+		ChunkPreviewLevel level, List<TerrainSnapshot> requested, long decorateMs,
+		int replayed, int run) {
+
+		int highestOccupied() {
+			int highest = Integer.MIN_VALUE;
+			for (TerrainSnapshot snapshot : requested) {
+				highest = Math.max(highest, level.highestOccupied(snapshot));
+			}
+			return highest;
+		}
+	}
+
+	/**
+	 * Decorated chunks counted across every decoration one request runs, so
+	 * the two sides of a comparison report as one total.
+	 */
+	private record ChunkProgress(Job.Progress progress, int total, AtomicInteger done) {
+
+		ChunkProgress(Job.Progress progress, int total) {
+			this(progress, total, new AtomicInteger());
+		}
+
+		void chunkDone() {
+			progress.report(done.incrementAndGet(), total);
+		}
+	}
+
+	/** Freshly taken snapshots, and the part of their cost spent copying. */
+	record Generated(List<TerrainSnapshot> snapshots, long copyMs) {
+	}
+
 	/**
 	 * Where a preview's time went, in milliseconds.
 	 *
@@ -316,17 +685,25 @@ public final class ChunkPreviewer {
 	 * @param copyMs      snapshotting the generated chunks, on the server thread
 	 * @param decorateMs  running the session's features over the snapshots
 	 * @param emitMs      turning the result into block DTOs
-	 * @param chunksTouched chunks generated, i.e. the grid plus its margin,
-	 *                      which is what generateMs is really divided over
+	 * @param chunksTouched chunks needed, i.e. the grid plus its margin
+	 * @param chunksCached  of those, how many were already snapshotted and
+	 *                      cost neither generateMs nor copyMs
+	 * @param featuresReplayed feature runs answered from the last decoration
+	 *                         of the same region, which is what decorateMs
+	 *                         shrinks with
+	 * @param featuresRun   feature runs actually executed
 	 */
 	public record Timings(
-		long generateMs, long copyMs, long decorateMs, long emitMs, int chunksTouched) {
+		long generateMs, long copyMs, long decorateMs, long emitMs, int chunksTouched,
+		int chunksCached, int featuresReplayed, int featuresRun) {
 
 		@Override
 		public String toString() {
-			return "generate=" + generateMs + "ms (" + chunksTouched + " chunks)"
+			return "generate=" + generateMs + "ms (" + chunksTouched + " chunks, "
+				+ chunksCached + " cached)"
 				+ " copy=" + copyMs + "ms"
-				+ " decorate=" + decorateMs + "ms"
+				+ " decorate=" + decorateMs + "ms (" + featuresReplayed + " replayed, "
+				+ featuresRun + " run)"
 				+ " emit=" + emitMs + "ms";
 		}
 	}
@@ -341,4 +718,13 @@ public final class ChunkPreviewer {
 		List<BlockDto> blocks, int chunkCount, int decoratedCount, int minY, int maxY,
 		BiomeGridDto biomes, Timings timings) {
 	}
+
+	/**
+	 * One area decorated both ways, over the same terrain and window.
+	 *
+	 * @param vanilla  decorated by the running world's own registries
+	 * @param datapack decorated by the session's
+	 */
+	public record Comparison(Result vanilla, Result datapack) {
+	}
 }
@@ -0,0 +1,263 @@
+package savage.tree_engine.preview.chunk;
+
+import com.google.gson.JsonElement;
+import com.mojang.serialization.JsonOps;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Holder;
+import net.minecraft.core.HolderSet;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.levelgen.placement.PlacedFeature;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * What each placed feature wrote during the last decoration of a region, kept
+ * so the next decoration of the same region can replay it instead of running
+ * the feature again.
+ *
+ * The editing loop is "change one tree, re-preview", and almost none of a
+ * chunk's decoration depends on that tree: ores, lakes, springs, grass and
+ * every other tree in the biome produce exactly what they produced last time.
+ * A feature's output is a function of its definition, its seed (fixed by its
+ * step and index) and the blocks it reads, so a layer can be replayed whenever
+ * the definition hashes the same and nothing it read has since changed. See
+ * {@link LayeredDecorator} for how "nothing it read" is decided.
+ *
+ * <p>Held per region and seed rather than per chunk, because decoration order
+ * across chunks is part of what a feature sees: chunk B's features run over
+ * whatever chunk A's trees spilled into it.
+ */
+final class DecorationLayers {
+	/** A couple of regions covers flipping between two views of the same edit. */
+	private static final int MAX_RUNS = 4;
+
+	/** Bounds memory rather than runs; ore-heavy regions write a lot of blocks. */
+	private static final long MAX_WRITES = 4_000_000;
+
+	/**
+	 * Definition hashes, remembered per feature object. Sessions are cached, so
+	 * the same objects come back on every preview, and encoding every feature
+	 * of every biome on each one would cost more than some of them take to run.
+	 * Weak so an evicted session's features can still be collected.
+	 */
+	private static final Map<PlacedFeature, String> HASHES =
+		Collections.synchronizedMap(new WeakHashMap<>());
+
+	private final LinkedHashMap<Region, Run> runs = new LinkedHashMap<>(8, 0.75f, true);
+	private long heldWrites;
+
+	/** The last decoration of this region, or null if there is none. */
+	synchronized Run previous(Region region) {
+		return runs.get(region);
+	}
+
+	synchronized void store(Region region, Run run) {
+		Run replaced = runs.put(region, run);
+		if (replaced != null) {
+			heldWrites -= replaced.writes();
+		}
+		heldWrites += run.writes();
+
+		var eldest = runs.entrySet().iterator();
+		while ((runs.size() > MAX_RUNS || heldWrites > MAX_WRITES) && runs.size() > 1) {
+			heldWrites -= eldest.next().getValue().writes();
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * A hash of everything that decides what a feature places, or null if it
+	 * cannot be encoded - in which case it is simply never replayed.
+	 *
+	 * <p>Encoded with plain {@link JsonOps} rather than registry ops on
+	 * purpose. Registry ops write a referenced feature as its id, so a
+	 * {@code random_selector} would hash the same after the tree it selects was
+	 * edited; without them every reference is written out inline, and an edit
+	 * anywhere beneath a feature changes its hash.
+	 */
+	static String featureHash(PlacedFeature feature) {
+		String cached = HASHES.get(feature);
+		if (cached != null) {
+			return cached;
+		}
+		JsonElement encoded = PlacedFeature.DIRECT_CODEC.encodeStart(JsonOps.INSTANCE, feature)
+			.result().orElse(null);
+		if (encoded == null) {
+			return null;
+		}
+		String hash = sha256(encoded.toString());
+		HASHES.put(feature, hash);
+		return hash;
+	}
+
+	/**
+	 * A hash of the per-step feature lists of {@code biomes}, or null if any
+	 * feature in them cannot be hashed.
+	 *
+	 * <p>A feature's own hash does not cover these. They decide which features
+	 * run in a chunk at all, and the biome check every placed feature makes -
+	 * whether the biome at its origin lists it - reads them too: moving a tree
+	 * from one biome's list to another's changes where it may place without
+	 * changing the tree. So a layer only replays over the same lists.
+	 *
+	 * @param biomes each biome's per-step lists; order does not matter
+	 */
+	static String biomesHash(List<List<HolderSet<PlacedFeature>>> biomes) {
+		List<String> perBiome = new ArrayList<>(biomes.size());
+		for (List<HolderSet<PlacedFeature>> steps : biomes) {
+			StringBuilder lists = new StringBuilder();
+			for (HolderSet<PlacedFeature> step : steps) {
+				for (Holder<PlacedFeature> feature : step) {
+					String hash = featureHash(feature.value());
+					if (hash == null) {
+						return null;
+					}
+					lists.append(hash).append(',');
+				}
+				lists.append(';');
+			}
+			perBiome.add(lists.toString());
+		}
+		Collections.sort(perBiome);
+		return sha256(String.join("|", perBiome));
+	}
+
+	private static String sha256(String text) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 unavailable", e);
+		}
+	}
+
+	/**
+	 * Decorations are only comparable over the same chunks with the same seed.
+	 *
+	 * <p>Not by session: every edit is a new session, and the run it should
+	 * replay from is the previous session's. Keys already keep a layer from
+	 * replaying under definitions or biomes it was not recorded with. Only
+	 * the two sides of a comparison are kept apart, since they decorate one
+	 * region together and would otherwise replace each other's runs.
+	 *
+	 * @param world whether the server's own registries decorated it, rather
+	 *              than a session's
+	 */
+	record Region(
+		boolean world, int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ, long seed) {
+	}
+
+	/**
+	 * One feature's run in one chunk.
+	 *
+	 * @param chunk       packed position of the chunk being decorated
+	 * @param step        generation step, which with {@code index} fixes the
+	 *                    feature's random seed
+	 * @param featureHash {@link #featureHash} of its definition
+	 * @param biomesHash  {@link #biomesHash} of the biomes around the chunk
+	 */
+	record Key(long chunk, int step, int index, String featureHash, String biomesHash) {
+
+		/** Whether a layer under this key can be replayed at all. */
+		boolean replayable() {
+			return featureHash != null && biomesHash != null;
+		}
+	}
+
+	/**
+	 * What one feature did: its writes in order, and where it looked.
+	 *
+	 * @param sections packed section positions it read blocks from
+	 * @param columns  packed chunk positions whose heights it asked for - a
+	 *                 height depends on every block in the column, so it is
+	 *                 tracked per chunk rather than per section
+	 */
+	record Layer(long[] positions, BlockState[] states, LongSet sections, LongSet columns) {
+
+		boolean sameWrites(Layer other) {
+			return Arrays.equals(positions, other.positions)
+				&& Arrays.equals(states, other.states);
+		}
+	}
+
+	/** Every layer of one region's decoration, in the order they ran. */
+	static final class Run {
+		private final LinkedHashMap<Key, Layer> layers = new LinkedHashMap<>();
+		private long writes;
+
+		Layer get(Key key) {
+			return layers.get(key);
+		}
+
+		void put(Key key, Layer layer) {
+			Layer replaced = layers.put(key, layer);
+			if (replaced != null) {
+				writes -= replaced.positions().length;
+			}
+			writes += layer.positions().length;
+		}
+
+		/** Layers recorded for one chunk, for finding ones that no longer run. */
+		List<Map.Entry<Key, Layer>> inChunk(long chunk) {
+			List<Map.Entry<Key, Layer>> out = new ArrayList<>();
+			for (Map.Entry<Key, Layer> entry : layers.entrySet()) {
+				if (entry.getKey().chunk() == chunk) {
+					out.add(entry);
+				}
+			}
+			return out;
+		}
+
+		long writes() {
+			return writes;
+		}
+	}
+
+	/** Collects one layer while its feature runs; see {@link ChunkPreviewLevel}. */
+	static final class Recorder {
+		private final LongArrayList positions = new LongArrayList();
+		private final List<BlockState> states = new ArrayList<>();
+		private final LongSet sections = new LongOpenHashSet();
+		private final LongSet columns = new LongOpenHashSet();
+		// Features read in tight runs - a trunk, a leaf blob - so most reads land
+		// in the section the last one did, and this skips the set entirely.
+		private long lastSection = Long.MIN_VALUE;
+
+		void read(BlockPos pos) {
+			long section = SectionPos.asLong(pos.getX() >> 4, pos.getY() >> 4, pos.getZ() >> 4);
+			if (section != lastSection) {
+				sections.add(section);
+				lastSection = section;
+			}
+		}
+
+		void readColumn(int x, int z) {
+			columns.add(ChunkPos.pack(x >> 4, z >> 4));
+		}
+
+		void write(BlockPos pos, BlockState state) {
+			positions.add(pos.asLong());
+			states.add(state);
+		}
+
+		Layer finish() {
+			return new Layer(
+				positions.toLongArray(), states.toArray(new BlockState[0]), sections, columns);
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package savage.tree_engine.preview.chunk;
+
+import it.unimi.dsi.fastutil.ints.IntArraySet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.ObjectArraySet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Holder;
+import net.minecraft.core.HolderSet;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.StructureManager;
+import net.minecraft.world.level.biome.Biome;
+import net.minecraft.world.level.biome.FeatureSorter;
+import net.minecraft.world.level.chunk.ChunkAccess;
+import net.minecraft.world.level.chunk.ChunkGenerator;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.status.ChunkStatus;
+import net.minecraft.world.level.levelgen.RandomSupport;
+import net.minecraft.world.level.levelgen.WorldgenRandom;
+import net.minecraft.world.level.levelgen.XoroshiroRandomSource;
+import net.minecraft.world.level.levelgen.placement.PlacedFeature;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs a chunk's decoration one placed feature at a time, replaying whatever
+ * the previous decoration of the same region already worked out.
+ *
+ * <p>This is {@code ChunkGenerator.applyBiomeDecoration}'s feature loop,
+ * ported rather than called, because the vanilla method runs every feature in
+ * one go and there is no way to skip one from outside it. The port keeps what
+ * decides the output: the biomes gathered from the chunk and its neighbours,
+ * the step-then-index order, and the per-feature seed. Structures are the part
+ * left out - the managed server disables them - so if they are ever enabled
+ * this falls straight back to the vanilla method rather than previewing
+ * without them.
+ *
+ * <p>A recorded layer is replayed only when it is certain to come out the
+ * same. It must have been recorded by the same registries - the region says
+ * which - its definition must hash identically, so must the feature lists of
+ * the biomes around its chunk, and none of the sections it read may have
+ * been written differently in this run than in the recorded one. The last is
+ * tracked as a "dirty" set: every section a re-run feature wrote (where its
+ * output differs from what was recorded), and every section a recorded
+ * feature wrote that is no longer being run at all. Anything reading
+ * those re-runs. That is deliberately conservative - a lake re-runs if a tree
+ * spilled into its section, whether or not it looked at that tree - because a
+ * replay that should have been a re-run is a wrong preview, and a re-run that
+ * could have been a replay only costs time.
+ *
+ * <p>One input is not tracked: the level's own random. Vanilla features draw
+ * from the seeded random handed to them, never from the level's, so skipping
+ * one does not shift another.
+ */
+final class LayeredDecorator {
+	private final ChunkGenerator generator;
+	private final DecorationLayers.Run previous;
+	private final DecorationLayers.Run recorded = new DecorationLayers.Run();
+	private final List<FeatureSorter.StepFeatureData> featuresPerStep;
+
+	private final LongSet dirtySections = new LongOpenHashSet();
+	private final LongSet dirtyColumns = new LongOpenHashSet();
+	private boolean complete = true;
+	private int replayed;
+	private int run;
+
+	/**
+	 * @param previous the last decoration of this region, or null to run
+	 *                 everything and only record
+	 */
+	LayeredDecorator(ChunkGenerator generator, DecorationLayers.Run previous) {
+		this.generator = generator;
+		this.previous = previous;
+
+		// Built exactly as ChunkGenerator builds its own, from the same
+		// settings function, so indices and therefore seeds agree with it.
+		this.featuresPerStep = FeatureSorter.buildFeaturesPerStep(
+			List.copyOf(generator.getBiomeSource().possibleBiomes()),
+			biome -> generator.getBiomeGenerationSettings(biome).features(),
+			true);
+	}
+
+	/** Layers recorded by this run, or null if any chunk bypassed recording. */
+	DecorationLayers.Run recorded() {
+		return complete ? recorded : null;
+	}
+
+	int replayed() {
+		return replayed;
+	}
+
+	int run() {
+		return run;
+	}
+
+	void decorate(ChunkPreviewLevel level, ChunkAccess chunk, StructureManager structures) {
+		if (structures.shouldGenerateStructures()) {
+			generator.applyBiomeDecoration(level, chunk, structures);
+			complete = false;
+			return;
+		}
+
+		ChunkPos pos = chunk.getPos();
+		long chunkKey = ChunkPos.pack(pos.x(), pos.z());
+		BlockPos origin = new BlockPos(pos.getMinBlockX(), level.getMinY(), pos.getMinBlockZ());
+
+		WorldgenRandom random = new WorldgenRandom(
+			new XoroshiroRandomSource(RandomSupport.generateUniqueSeed()));
+		long decorationSeed = random.setDecorationSeed(level.getSeed(), origin.getX(), origin.getZ());
+
+		List<Planned> plan = plan(level, pos, chunkKey);
+
+		// A recorded feature that will not run this time still left its blocks
+		// in the recorded world, so anything that read them has to re-run.
+		if (previous != null) {
+			Set<DecorationLayers.Key> planned = new HashSet<>();
+			for (Planned p : plan) {
+				planned.add(p.key());
+			}
+			for (Map.Entry<DecorationLayers.Key, DecorationLayers.Layer> entry : previous.inChunk(chunkKey)) {
+				if (!planned.contains(entry.getKey())) {
+					dirty(entry.getValue());
+				}
+			}
+		}
+
+		for (Planned p : plan) {
+			DecorationLayers.Key key = p.key();
+			DecorationLayers.Layer cached =
+				previous != null && key.replayable() ? previous.get(key) : null;
+
+			if (cached != null && untouched(cached)) {
+				level.replay(cached);
+				recorded.put(key, cached);
+				replayed++;
+				continue;
+			}
+
+			random.setFeatureSeed(decorationSeed, p.index(), p.step());
+			level.beginLayer();
+			DecorationLayers.Layer fresh;
+			try {
+				p.feature().placeWithBiomeCheck(level, generator, random, origin);
+			} finally {
+				fresh = level.endLayer();
+			}
+			run++;
+
+			if (cached == null || !fresh.sameWrites(cached)) {
+				dirty(fresh);
+				if (cached != null) {
+					dirty(cached);
+				}
+			}
+			if (key.replayable()) {
+				recorded.put(key, fresh);
+			}
+		}
+	}
+
+	/**
+	 * The features that run in this chunk, in the order they run - vanilla's
+	 * selection: every feature of every biome present in the chunk or its
+	 * neighbours, per step, sorted by the step's global index.
+	 */
+	private List<Planned> plan(ChunkPreviewLevel level, ChunkPos pos, long chunkKey) {
+		Set<Holder<Biome>> biomes = new ObjectArraySet<>();
+		for (int dx = -1; dx <= 1; dx++) {
+			for (int dz = -1; dz <= 1; dz++) {
+				ChunkAccess near = level.getChunk(pos.x() + dx, pos.z() + dz, ChunkStatus.EMPTY, false);
+				if (near == null) {
+					continue;
+				}
+				for (LevelChunkSection section : near.getSections()) {
+					section.getBiomes().getAll(biomes::add);
+				}
+			}
+		}
+		biomes.retainAll(generator.getBiomeSource().possibleBiomes());
+
+		List<List<HolderSet<PlacedFeature>>> lists = new ArrayList<>(biomes.size());
+		for (Holder<Biome> biome : biomes) {
+			lists.add(generator.getBiomeGenerationSettings(biome).features());
+		}
+		String biomesHash = DecorationLayers.biomesHash(lists);
+
+		List<Planned> plan = new ArrayList<>();
+		for (int step = 0; step < featuresPerStep.size(); step++) {
+			FeatureSorter.StepFeatureData data = featuresPerStep.get(step);
+			IntSet indices = new IntArraySet();
+			for (Holder<Biome> biome : biomes) {
+				List<HolderSet<PlacedFeature>> perStep =
+					generator.getBiomeGenerationSettings(biome).features();
+				if (step < perStep.size()) {
+					for (Holder<PlacedFeature> feature : perStep.get(step)) {
+						indices.add(data.indexMapping().applyAsInt(feature.value()));
+					}
+				}
+			}
+			int[] sorted = indices.toIntArray();
+			Arrays.sort(sorted);
+			for (int index : sorted) {
+				PlacedFeature feature = data.features().get(index);
+				plan.add(new Planned(step, index, feature, new DecorationLayers.Key(
+					chunkKey, step, index, DecorationLayers.featureHash(feature), biomesHash)));
+			}
+		}
+		return plan;
+	}
+
+	private boolean untouched(DecorationLayers.Layer layer) {
+		return disjoint(layer.sections(), dirtySections) && disjoint(layer.columns(), dirtyColumns);
+	}
+
+	private static boolean disjoint(LongSet a, LongSet b) {
+		LongSet small = a.size() <= b.size() ? a : b;
+		LongSet large = small == a ? b : a;
+		for (long key : small) {
+			if (large.contains(key)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void dirty(DecorationLayers.Layer layer) {
+		for (long packed : layer.positions()) {
+			int x = BlockPos.getX(packed);
+			int y = BlockPos.getY(packed);
+			int z = BlockPos.getZ(packed);
+			dirtySections.add(SectionPos.asLong(x >> 4, y >> 4, z >> 4));
+			dirtyColumns.add(ChunkPos.pack(x >> 4, z >> 4));
+		}
+	}
+
+	private record Planned(int step, int index, PlacedFeature feature, DecorationLayers.Key key) {
+	}
+}
@@ -0,0 +1,124 @@
+package savage.tree_engine.preview.chunk;
+
+import net.minecraft.world.level.ChunkPos;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Terrain snapshots kept between previews, including ones taken ahead of time
+ * by {@link ChunkPrefetcher}.
+ *
+ * Terrain comes from the running world and nothing ever edits that world, so
+ * a snapshot is valid for as long as the server runs; the only question is
+ * how many to hold. Re-previewing the same area - the usual thing after an
+ * edit - then skips generation and copying entirely.
+ *
+ * <p>Also where the prefetcher is held to account. Every speculative snapshot
+ * is counted, and so is whether a real preview ever used it before it was
+ * evicted, which is the number that says whether prefetching is worth what it
+ * costs.
+ */
+public final class TerrainCache {
+	/**
+	 * Enough for the largest preview plus its margin and a one-chunk ring.
+	 *
+	 * <p>A snapshot is a block-state reference per block of a full-height
+	 * chunk, around 400 KB, but that is not all it holds. Decoration needs the
+	 * chunk it came from - for biomes, heightmaps and structure starts, which
+	 * a preview level reads through {@link TerrainSnapshot#sourceChunk} - so
+	 * the server's generated chunk stays reachable for as long as its
+	 * snapshot is cached, even once the server itself has unloaded it. Its
+	 * palette-packed sections, heightmaps and whatever generation left on it
+	 * come to a few hundred KB more. Taken together, allow up to about 1 MB a
+	 * chunk: some 200 MB of the game's heap when full, outside the session and
+	 * request budgets; see {@link savage.tree_engine.BackendConfig}.
+	 */
+	static final int MAX_SNAPSHOTS = 200;
+
+	private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+	private long requested;
+	private long served;
+	private long prefetched;
+	private long prefetchUsed;
+	private long prefetchWasted;
+
+	/** A snapshot for a real preview, or null if it has to be generated. */
+	synchronized TerrainSnapshot take(ChunkPos pos) {
+		requested++;
+		Entry entry = entries.get(ChunkPos.pack(pos.x(), pos.z()));
+		if (entry == null) {
+			return null;
+		}
+		served++;
+		if (entry.speculative && !entry.used) {
+			prefetchUsed++;
+		}
+		entry.used = true;
+		return entry.snapshot;
+	}
+
+	synchronized boolean contains(ChunkPos pos) {
+		return entries.containsKey(ChunkPos.pack(pos.x(), pos.z()));
+	}
+
+	/**
+	 * @param speculative whether no request has asked for this yet; a
+	 *                    speculative snapshot never replaces a held one
+	 */
+	synchronized void put(TerrainSnapshot snapshot, boolean speculative) {
+		long key = ChunkPos.pack(snapshot.pos().x(), snapshot.pos().z());
+		if (speculative) {
+			if (entries.containsKey(key)) {
+				return;
+			}
+			prefetched++;
+		}
+		Entry entry = new Entry(snapshot, speculative);
+		entry.used = !speculative;
+		entries.put(key, entry);
+
+		var eldest = entries.values().iterator();
+		while (entries.size() > MAX_SNAPSHOTS) {
+			Entry evicted = eldest.next();
+			if (evicted.speculative && !evicted.used) {
+				prefetchWasted++;
+			}
+			eldest.remove();
+		}
+	}
+
+	synchronized Stats stats(int ring) {
+		return new Stats(
+			ring, entries.size(), requested, served, prefetched, prefetchUsed, prefetchWasted,
+			prefetched == 0 ? 0 : (double) prefetchUsed / prefetched);
+	}
+
+	private static final class Entry {
+		final TerrainSnapshot snapshot;
+		final boolean speculative;
+		boolean used;
+
+		Entry(TerrainSnapshot snapshot, boolean speculative) {
+			this.snapshot = snapshot;
+			this.speculative = speculative;
+		}
+	}
+
+	/**
+	 * Counters since startup.
+	 *
+	 * @param ring           configured prefetch ring, 0 when disabled
+	 * @param held           snapshots currently held
+	 * @param requested      chunks real previews needed, margin included
+	 * @param served         of those, how many came from this cache
+	 * @param prefetched     snapshots taken speculatively
+	 * @param prefetchUsed   of those, how many a real preview went on to use
+	 * @param prefetchWasted of those, how many were evicted unused
+	 * @param prefetchHitRate {@code prefetchUsed / prefetched}
+	 */
+	public record Stats(
+		int ring, int held, long requested, long served, long prefetched, long prefetchUsed,
+		long prefetchWasted, double prefetchHitRate) {
+	}
+}
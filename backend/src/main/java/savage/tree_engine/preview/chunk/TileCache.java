@@ -0,0 +1,111 @@
+package savage.tree_engine.preview.chunk;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+
+/**
+ * Encoded chunk preview tiles, held off the Java heap and bounded by bytes.
+ *
+ * A tile is one chunk's natural preview, already serialised to the JSON the
+ * client receives. Keeping the encoded form rather than the block list means a
+ * hit costs a copy to the socket and nothing else - no DTOs, no Gson tree, no
+ * String - and keeping it in direct buffers means a cache of a few hundred
+ * tiles is not a few hundred megabytes for the game's collector to trace.
+ *
+ * <p>Every input that decides a tile's content is in its {@link Key}, and the
+ * session part of that is a content fingerprint, so an entry can never go
+ * stale: nothing is ever invalidated, only evicted. That is also what lets
+ * tiles be served with a strong ETag and an immutable cache lifetime.
+ *
+ * <p>Direct buffers are released when collected rather than on eviction, so
+ * the bound is on what the cache holds, not on the process's direct memory at
+ * any instant. At the sizes involved the difference is a GC cycle's worth.
+ */
+public final class TileCache {
+	private final long maxBytes;
+	private final LinkedHashMap<Key, Tile> tiles = new LinkedHashMap<>(64, 0.75f, true);
+	private long heldBytes;
+
+	public TileCache(long maxBytes) {
+		this.maxBytes = Math.max(0, maxBytes);
+	}
+
+	/** Returns the tile, or null if it is not held. */
+	public synchronized Tile get(Key key) {
+		return tiles.get(key);
+	}
+
+	/**
+	 * Stores an encoded tile and returns it. A tile larger than the whole
+	 * budget is returned without being kept, so the caller can still serve it.
+	 */
+	public Tile put(Key key, byte[] json) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(json.length);
+		buffer.put(json).flip();
+		Tile tile = new Tile(buffer.asReadOnlyBuffer(), etag(json));
+		if (json.length > maxBytes) {
+			return tile;
+		}
+
+		synchronized (this) {
+			Tile replaced = tiles.put(key, tile);
+			if (replaced != null) {
+				heldBytes -= replaced.size();
+			}
+			heldBytes += tile.size();
+
+			var eldest = tiles.entrySet().iterator();
+			while (heldBytes > maxBytes && eldest.hasNext()) {
+				heldBytes -= eldest.next().getValue().size();
+				eldest.remove();
+			}
+		}
+		return tile;
+	}
+
+	public synchronized int size() {
+		return tiles.size();
+	}
+
+	public synchronized long heldBytes() {
+		return heldBytes;
+	}
+
+	/** Strong, because the bytes for a key never change. */
+	private static String etag(byte[] json) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(json);
+			return "\"" + HexFormat.of().formatHex(digest).substring(0, 32) + "\"";
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 unavailable", e);
+		}
+	}
+
+	/**
+	 * Everything that decides a tile's content.
+	 *
+	 * @param world   the running world's seed, since terrain comes from it; a
+	 *                URL minted against one world must not serve another
+	 * @param session the session fingerprint, or {@code vanilla}
+	 * @param minY    explicit floor, or null for the default
+	 * @param maxY    explicit ceiling, or null to fit
+	 */
+	public record Key(
+		long world, String session, int chunkX, int chunkZ, long seed,
+		Integer minY, Integer maxY, boolean decoratedOnly) {
+	}
+
+	/**
+	 * @param body a read-only view of the encoded JSON; duplicate it before
+	 *             reading so concurrent responses do not share a position
+	 */
+	public record Tile(ByteBuffer body, String etag) {
+
+		public int size() {
+			return body.capacity();
+		}
+	}
+}
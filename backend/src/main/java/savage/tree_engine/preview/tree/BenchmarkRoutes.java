@@ -8,8 +8,12 @@ import net.minecraft.core.RegistryAccess;
 import net.minecraft.server.MinecraftServer;
 import savage.tree_engine.api.ApiException;
 import savage.tree_engine.api.ApiServer;
+import savage.tree_engine.api.CpuPool;
 import savage.tree_engine.api.Http;
+import savage.tree_engine.api.Lane;
 import savage.tree_engine.datapack.SessionCache;
+import savage.tree_engine.jobs.Job;
+import savage.tree_engine.jobs.JobRoutes;
 
 /**
  * {@code POST /v1/benchmark} - how expensive is this tree to generate?
@@ -17,6 +21,9 @@ import savage.tree_engine.datapack.SessionCache;
  * Useful when a config uses heavy placers or large foliage: the editor can
  * show that a tree costs 10x what a vanilla oak does before it ends up in a
  * datapack that generates thousands of them.
+ *
+ * <p>A long run is better submitted as a {@code benchmark} job, which reports
+ * iterations as it goes and can be cancelled; see {@link JobRoutes}.
  */
 public final class BenchmarkRoutes {
 	/** Enough to be meaningful without letting a request occupy a worker for minutes. */
@@ -25,31 +32,35 @@ public final class BenchmarkRoutes {
 
 	private final SessionCache sessions;
 	private final SingleTreePreviewer previewer;
+	private final CpuPool cpu;
 	private final Gson gson;
 
-	public BenchmarkRoutes(MinecraftServer server, SessionCache sessions, Gson gson) {
+	public BenchmarkRoutes(MinecraftServer server, SessionCache sessions, CpuPool cpu, Gson gson) {
 		this.sessions = sessions;
 		this.previewer = new SingleTreePreviewer(server);
+		this.cpu = cpu;
 		this.gson = gson;
 	}
 
-	public void register(ApiServer api) {
-		api.route("/v1/benchmark", this::handle);
+	public void register(ApiServer api, JobRoutes jobs) {
+		api.route("/v1/benchmark", Lane.BULK, this::handle);
+		jobs.kind("benchmark", Lane.BULK, this::prepare);
 	}
 
 	private void handle(HttpExchange exchange) throws Exception {
 		Http.require(exchange, "POST");
+		Http.sendJson(exchange, 200, gson.toJson(prepare(exchange).run(Job.Progress.NONE)));
+	}
 
+	private Job.Work prepare(HttpExchange exchange) throws Exception {
 		JsonElement body = Http.readJson(exchange);
 		if (!body.isJsonObject()) {
 			throw ApiException.badRequest("Request body must be a JSON object");
 		}
 		JsonObject request = body.getAsJsonObject();
 
-		JsonElement feature = request.get("feature");
-		if (feature != null && feature.isJsonNull()) {
-			feature = null;
-		}
+		JsonElement raw = request.get("feature");
+		JsonElement feature = raw != null && !raw.isJsonNull() ? raw : null;
 		String featureId = request.has("featureId") && !request.get("featureId").isJsonNull()
 			? request.get("featureId").getAsString() : null;
 		if (feature == null && featureId == null) {
@@ -68,12 +79,20 @@ public final class BenchmarkRoutes {
 
 		String biome = request.has("biome") && !request.get("biome").isJsonNull()
 			? request.get("biome").getAsString() : null;
+		// The whole loop is one CPU task: it never waits on anything.
+		return progress -> cpu.call(
+			() -> run(registries, feature, featureId, biome, iterations, progress));
+	}
+
+	private JsonObject run(
+		RegistryAccess registries, JsonElement feature, String featureId, String biome, int iterations,
+		Job.Progress progress) {
 
 		// Warm up first: the first few runs pay class-loading and JIT costs
 		// that would otherwise dominate a short benchmark and make every
 		// config look equally slow.
 		for (int i = 0; i < WARMUP; i++) {
-			previewer.preview(registries, feature, featureId, biome, i, false);
+			previewer.preview(registries, feature, featureId, biome, i, false, Job.Progress.NONE);
 		}
 
 		int blocks = 0;
@@ -81,8 +100,10 @@ public final class BenchmarkRoutes {
 		for (int i = 0; i < iterations; i++) {
 			// Vary the seed so the benchmark covers the config's range of
 			// outcomes rather than measuring one shape repeatedly.
-			blocks += previewer.preview(registries, feature, featureId, biome, i, false)
-				.blocks().size();
+			blocks += previewer.preview(
+				registries, feature, featureId, biome, i, false, Job.Progress.NONE).blocks().size();
+			progress.report(i + 1, iterations);
+			progress.checkCancelled();
 		}
 		long elapsedNanos = System.nanoTime() - start;
 
@@ -93,6 +114,6 @@ public final class BenchmarkRoutes {
 		response.addProperty("avgMs", totalMs / iterations);
 		response.addProperty("treesPerSecond", iterations / (totalMs / 1000.0));
 		response.addProperty("avgBlocks", (double) blocks / iterations);
-		Http.sendJson(exchange, 200, gson.toJson(response));
+		return response;
 	}
 }
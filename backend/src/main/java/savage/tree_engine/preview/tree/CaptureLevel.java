@@ -41,6 +41,7 @@ import net.minecraft.world.phys.shapes.VoxelShape;
 import net.minecraft.world.ticks.LevelTickAccess;
 import net.minecraft.world.ticks.ScheduledTick;
 import net.minecraft.world.ticks.TickPriority;
+import savage.tree_engine.jobs.Job;
 import savage.tree_engine.preview.BlockDto;
 
 import java.util.ArrayList;
@@ -64,20 +65,27 @@ import java.util.function.Supplier;
  *
  * Single-tree previews only. Natural chunk generation uses real terrain and
  * must not go through this class.
+ *
+ * <p>Every write asks {@code progress} whether to carry on. A tree is placed
+ * in one call with no other point to stop at, and a runaway feature is
+ * exactly the one a superseding preview needs to cut short.
  */
 public final class CaptureLevel implements WorldGenLevel {
 	private final MinecraftServer server;
 	private final RegistryAccess registries;
 	private final GroundPlane ground;
 	private final RandomSource random;
+	private final Job.Progress progress;
 	private final Map<BlockPos, BlockState> placed = new LinkedHashMap<>();
 
 	public CaptureLevel(
-		MinecraftServer server, RegistryAccess registries, GroundPlane ground, RandomSource random) {
+		MinecraftServer server, RegistryAccess registries, GroundPlane ground, RandomSource random,
+		Job.Progress progress) {
 		this.server = server;
 		this.registries = registries;
 		this.ground = ground;
 		this.random = random;
+		this.progress = progress;
 	}
 
 	/**
@@ -100,6 +108,7 @@ public final class CaptureLevel implements WorldGenLevel {
 
 	@Override
 	public boolean setBlock(BlockPos pos, BlockState state, int flags, int recursionLeft) {
+		progress.checkCancelled();
 		// Tree placers reuse a MutableBlockPos and keep mutating it after
 		// this call, so the key must be an immutable snapshot or every entry
 		// in the map ends up pointing at the same final position.
@@ -14,9 +14,11 @@ import net.minecraft.util.RandomSource;
 import net.minecraft.world.level.biome.FixedBiomeSource;
 import net.minecraft.world.level.levelgen.feature.ConfiguredFeature;
 import savage.tree_engine.api.ApiException;
+import savage.tree_engine.jobs.Job;
 import savage.tree_engine.preview.BlockDto;
 
 import java.util.List;
+import java.util.concurrent.CancellationException;
 
 /**
  * Generates one tree, in isolation, on a fabricated ground plane.
@@ -41,9 +43,13 @@ public final class SingleTreePreviewer {
 		return server.registryAccess();
 	}
 
+	/**
+	 * @param progress asked on every block placed whether to carry on; see
+	 *                 {@link CaptureLevel}
+	 */
 	public Result preview(
 		RegistryAccess registries, JsonElement featureJson, String featureId,
-		String biomeId, long seed, boolean includeGround) {
+		String biomeId, long seed, boolean includeGround, Job.Progress progress) {
 
 		ConfiguredFeature<?, ?> feature = featureJson != null
 			? parse(registries, featureJson)
@@ -51,12 +57,15 @@ public final class SingleTreePreviewer {
 
 		GroundPlane ground = GroundPlane.create(registries, biomeId);
 		RandomSource random = RandomSource.create(seed);
-		CaptureLevel level = new CaptureLevel(server, registries, ground, random);
+		CaptureLevel level = new CaptureLevel(server, registries, ground, random, progress);
 		FlatGenerator generator = new FlatGenerator(new FixedBiomeSource(ground.biome()));
 
 		boolean placed;
 		try {
 			placed = feature.place(level, generator, random, BlockPos.ZERO);
+		} catch (ApiException | CancellationException e) {
+			// Stopped on purpose from inside the feature, not a fault in it.
+			throw e;
 		} catch (Exception e) {
 			throw ApiException.internal("Feature threw while generating", e);
 		}
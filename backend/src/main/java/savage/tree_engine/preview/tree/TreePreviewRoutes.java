@@ -8,27 +8,41 @@ import net.minecraft.core.RegistryAccess;
 import net.minecraft.server.MinecraftServer;
 import savage.tree_engine.api.ApiException;
 import savage.tree_engine.api.ApiServer;
+import savage.tree_engine.api.CpuPool;
 import savage.tree_engine.api.Http;
+import savage.tree_engine.api.Lane;
 import savage.tree_engine.datapack.Session;
 import savage.tree_engine.datapack.SessionCache;
-import savage.tree_engine.preview.BlockFlagsDto;
+import savage.tree_engine.jobs.Job;
+import savage.tree_engine.jobs.Supersession;
+import savage.tree_engine.preview.PreviewResults;
 
 /**
  * {@code POST /v1/preview/tree} - generate a single tree in isolation.
+ *
+ * <p>A request may carry a {@code supersede} key and a {@code deadlineMs};
+ * see {@link Supersession}.
  */
 public final class TreePreviewRoutes {
 	private final SessionCache sessions;
 	private final SingleTreePreviewer previewer;
+	private final PreviewResults results = new PreviewResults();
+	private final Supersession supersession;
+	private final CpuPool cpu;
 	private final Gson gson;
 
-	public TreePreviewRoutes(MinecraftServer server, SessionCache sessions, Gson gson) {
+	public TreePreviewRoutes(
+		MinecraftServer server, SessionCache sessions, Supersession supersession, CpuPool cpu,
+		Gson gson) {
 		this.sessions = sessions;
 		this.previewer = new SingleTreePreviewer(server);
+		this.supersession = supersession;
+		this.cpu = cpu;
 		this.gson = gson;
 	}
 
 	public void register(ApiServer api) {
-		api.route("/v1/preview/tree", this::handle);
+		api.route("/v1/preview/tree", Lane.INTERACTIVE, this::handle);
 	}
 
 	private void handle(HttpExchange exchange) throws Exception {
@@ -51,27 +65,39 @@ public final class TreePreviewRoutes {
 			registries = previewer.serverRegistries();
 		}
 
-		JsonElement feature = request.get("feature");
-		if (feature != null && feature.isJsonNull()) {
-			feature = null;
-		}
+		JsonElement raw = request.get("feature");
+		JsonElement feature = raw != null && !raw.isJsonNull() ? raw : null;
 
-		SingleTreePreviewer.Result result = previewer.preview(
-			registries,
-			feature,
-			string(request, "featureId"),
-			string(request, "biome"),
-			request.has("seed") ? request.get("seed").getAsLong() : 0L,
-			request.has("includeGround") && request.get("includeGround").getAsBoolean());
+		// Claimed as soon as the request is known to be good, so the preview
+		// this one replaces stops as early as possible - but not by one that
+		// was only going to fail.
+		Supersession.Ticket ticket =
+			supersession.claim(string(request, "supersede"), intOrNull(request, "deadlineMs"));
+		JsonObject response = ticket.guard(progress -> {
+			SingleTreePreviewer.Result result = cpu.call(() -> previewer.preview(
+				registries,
+				feature,
+				string(request, "featureId"),
+				string(request, "biome"),
+				request.has("seed") ? request.get("seed").getAsLong() : 0L,
+				request.has("includeGround") && request.get("includeGround").getAsBoolean(),
+				progress));
 
-		JsonObject response = new JsonObject();
-		response.add("blocks", gson.toJsonTree(result.blocks()));
-		response.add("blockFlags", gson.toJsonTree(BlockFlagsDto.forBlocks(result.blocks())));
-		response.addProperty("blockCount", result.blocks().size());
-		response.addProperty("placed", result.placed());
+			JsonObject out = new JsonObject();
+			// Re-previewing after a small edit mostly returns the same tree, so a
+			// client quoting its last resultToken gets only what moved.
+			results.write(out, gson, result.blocks(), string(request, "since"));
+			out.addProperty("placed", result.placed());
+			return out;
+		}).run(Job.Progress.NONE);
 		Http.sendJson(exchange, 200, gson.toJson(response));
 	}
 
+	private static Integer intOrNull(JsonObject object, String key) {
+		JsonElement value = object.get(key);
+		return value == null || value.isJsonNull() ? null : value.getAsInt();
+	}
+
 	private static String string(JsonObject object, String key) {
 		JsonElement value = object.get(key);
 		if (value == null || value.isJsonNull()) {
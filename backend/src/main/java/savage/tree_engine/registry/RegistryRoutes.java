@@ -17,6 +17,8 @@ import net.minecraft.world.level.levelgen.feature.TreeFeature;
 import savage.tree_engine.api.ApiException;
 import savage.tree_engine.api.ApiServer;
 import savage.tree_engine.api.Http;
+import savage.tree_engine.api.Lane;
+import savage.tree_engine.api.Query;
 import savage.tree_engine.datapack.SessionCache;
 
 import java.util.ArrayList;
@@ -42,8 +44,8 @@ public final class RegistryRoutes {
 	}
 
 	public void register(ApiServer api) {
-		api.route("/v1/registry/features", this::listFeatures);
-		api.route("/v1/registry/feature/", this::getFeature);
+		api.route("/v1/registry/features", Lane.INTERACTIVE, this::listFeatures);
+		api.route("/v1/registry/feature/", Lane.INTERACTIVE, this::getFeature);
 	}
 
 	/**
@@ -129,27 +131,4 @@ public final class RegistryRoutes {
 		body.addProperty("count", ids.size());
 		Http.sendJson(exchange, 200, gson.toJson(body));
 	}
-
-	/** Minimal query-string parsing; the API has only a couple of parameters. */
-	private record Query(java.util.Map<String, String> values) {
-		static Query of(String raw) {
-			java.util.Map<String, String> out = new java.util.HashMap<>();
-			if (raw != null) {
-				for (String pair : raw.split("&")) {
-					int eq = pair.indexOf('=');
-					if (eq > 0) {
-						out.put(
-							java.net.URLDecoder.decode(pair.substring(0, eq), java.nio.charset.StandardCharsets.UTF_8),
-							java.net.URLDecoder.decode(pair.substring(eq + 1), java.nio.charset.StandardCharsets.UTF_8));
-					}
-				}
-			}
-			return new Query(out);
-		}
-
-		String get(String key) {
-			String value = values.get(key);
-			return value == null || value.isBlank() ? null : value;
-		}
-	}
 }